@@ -19,7 +19,10 @@ object ClientMain : SignerCommandLineBase() {
     discoveryServer = discoveryNetworkIdentity,
     trustStoreDirectory = trustStoreDirectory,
     protocolServerFactory = { otherServers: MutableMap<NetworkIdentity, SocketTuple>, trustStore: File ->
-      AuthorityRoleServer(otherServers, trustStore, selfCertificate, selfPrivateKey)
+      AuthorityRoleServer(otherServers, trustStore, selfCertificate, selfPrivateKey).apply {
+        setGossipFanout(this@ClientMain.gossipFanout)
+        this@ClientMain.blockStoreDirectory?.let { openBlockStore(it) }
+      }
     },
     callbackWithConfiguredServer = ::runWebInterface
   )
@@ -32,10 +35,14 @@ object ClientMain : SignerCommandLineBase() {
           call.respondText(
             """
 Go to /check/{hash} to check the validity of a certificate<br>
-Go to /revoke/{cert} to revoke a certificate
+Go to /revoke/{cert} to revoke a certificate<br>
+Go to /metrics for server metrics
           """.trimIndent(), ContentType.Text.Html
           )
         }
+        get("/metrics") {
+          call.respondText(Metrics.render(), ContentType.parse("text/plain; version=0.0.4"))
+        }
         get("/check/{hash}") {
           call.parameters["hash"].let {
             if (it != null && it.isNotEmpty())
@@ -33,7 +33,13 @@ object ClientMain : CommandLineBase() {
     embeddedServer(CIO, webPort) {
       routing {
         get("/") {
-          call.respondText("Go to /check/{hash} to check the validity of a certificate", ContentType.Text.Html)
+          call.respondText(
+            "Go to /check/{hash} to check the validity of a certificate, or /metrics for server metrics",
+            ContentType.Text.Html
+          )
+        }
+        get("/metrics") {
+          call.respondText(Metrics.render(), ContentType.parse("text/plain; version=0.0.4"))
         }
         get("/check/{hash}") {
           call.parameters["hash"].let {
@@ -7,7 +7,10 @@ object ClientMain : SignerCommandLineBase() {
     trustStoreDirectory = trustStoreDirectory,
     // Method reference syntax, used here to reference a constructor
     protocolServerFactory = { otherServers, trustStore ->
-      ParticipantRoleServer(otherServers, trustStore, selfCertificate, selfPrivateKey)
+      ParticipantRoleServer(otherServers, trustStore, selfCertificate, selfPrivateKey).apply {
+        setGossipFanout(this@ClientMain.gossipFanout)
+        this@ClientMain.blockStoreDirectory?.let { openBlockStore(it) }
+      }
     }
   )
 }
\ No newline at end of file
@@ -0,0 +1,292 @@
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * The chain on disk: every block, in height order, in append-only segment files.
+ * <p>
+ * Each record is the block's serialized length and a CRC-32 of it (both 4-byte big-endian ints) followed by the block
+ * itself. A segment holds up to {@link #SEGMENT_BYTES} of records and is named after the height of its first block.
+ * Blocks are read back through a memory map of their segment, located with an in-memory height to position index that
+ * is rebuilt by scanning the segments when the store is opened. A segment's map only grows when the segment has at
+ * least doubled since it was mapped; records appended since then are read from the file instead.
+ * <p>
+ * A crash can only leave a partly written record at the very end of the last segment. Opening the store stops at the
+ * first record that's cut short or fails its checksum and truncates everything from there, so the store always holds
+ * a whole prefix of what was appended.
+ * <p>
+ * The state machine is the only writer, but reads can come from anywhere, so every method is synchronized.
+ */
+public class BlockStore implements Closeable {
+  public static final int SEGMENT_BYTES = 64 << 20;
+  private static final int HEADER_BYTES = 2 * Integer.BYTES;
+  private static final String SEGMENT_SUFFIX = ".blocks";
+
+  private final Path directory;
+  private final boolean syncEachAppend;
+  private final List<Segment> segments = new ArrayList<>();
+
+  // for each height, which segment its record is in and where
+  private int[] segmentOf = new int[1024];
+  private int[] offsetOf = new int[1024];
+  private int size = 0;
+
+  /*
+  Opens (creating if needed) the store in directory. With syncEachAppend, every append is forced to disk before it
+  returns.
+   */
+  public BlockStore(@NotNull File directory, boolean syncEachAppend) throws IOException {
+    this.directory = directory.toPath();
+    this.syncEachAppend = syncEachAppend;
+    Files.createDirectories(this.directory);
+
+    List<Path> files;
+    try (Stream<Path> listing = Files.list(this.directory)) {
+      files = listing
+          .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+    boolean damaged = false;
+    for (Path file : files) {
+      if (damaged) {
+        Log.warn(() -> "Deleting " + file + ", which comes after a damaged segment");
+        Files.delete(file);
+        continue;
+      }
+      Segment segment = new Segment(file);
+      this.segments.add(segment);
+      damaged = !scan(segment, this.segments.size() - 1);
+    }
+  }
+
+  public BlockStore(@NotNull File directory) throws IOException {
+    this(directory, true);
+  }
+
+  /*
+  How many blocks are stored, which is also the height the next one will have
+   */
+  public synchronized int size() {
+    return this.size;
+  }
+
+  @NotNull
+  public synchronized Dcrl.BlockMessage get(int height) {
+    if (height < 0 || height >= this.size) {
+      throw new IndexOutOfBoundsException("No block at height " + height + " (have " + this.size + ")");
+    }
+    Segment segment = this.segments.get(this.segmentOf[height]);
+    try {
+      ByteBuffer record = segment.read(this.offsetOf[height]);
+      return Dcrl.BlockMessage.parseFrom(record);
+    } catch (InvalidProtocolBufferException e) {
+      throw new IllegalStateException("Block " + height + " in " + segment.path + " didn't parse", e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /*
+  Every stored block from height from (inclusive) to to (exclusive)
+   */
+  @NotNull
+  public synchronized List<Dcrl.BlockMessage> range(int from, int to) {
+    List<Dcrl.BlockMessage> blocks = new ArrayList<>(Math.max(0, to - from));
+    for (int height = from; height < to; height++) {
+      blocks.add(get(height));
+    }
+    return blocks;
+  }
+
+  /*
+  Stores the block at height size()
+   */
+  public synchronized void append(@NotNull Dcrl.BlockMessage block) throws IOException {
+    byte[] bytes = block.toByteArray();
+    int recordBytes = HEADER_BYTES + bytes.length;
+
+    Segment segment = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+    if (segment == null || (segment.length > 0 && segment.length + recordBytes > SEGMENT_BYTES)) {
+      segment = new Segment(this.directory.resolve(String.format("%012d%s", this.size, SEGMENT_SUFFIX)));
+      this.segments.add(segment);
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    ByteBuffer record = ByteBuffer.allocate(recordBytes);
+    record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+
+    int offset = (int) segment.length;
+    while (record.hasRemaining()) {
+      segment.channel.write(record, segment.length + record.position());
+    }
+    if (this.syncEachAppend) {
+      segment.channel.force(false);
+    }
+    segment.length += recordBytes;
+    index(this.segments.size() - 1, offset);
+  }
+
+  /*
+  Drops every block from height onwards
+   */
+  public synchronized void truncate(int height) throws IOException {
+    if (height >= this.size) {
+      return;
+    }
+    height = Math.max(height, 0);
+    int keepSegment = this.segmentOf[height];
+    int keepBytes = this.offsetOf[height];
+    while (this.segments.size() > keepSegment + 1) {
+      Segment dropped = this.segments.remove(this.segments.size() - 1);
+      dropped.close();
+      Files.delete(dropped.path);
+    }
+    this.segments.get(keepSegment).truncate(keepBytes);
+    if (keepBytes == 0) {
+      Segment empty = this.segments.remove(keepSegment);
+      empty.close();
+      Files.delete(empty.path);
+    }
+    this.size = height;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (Segment segment : this.segments) {
+      segment.close();
+    }
+    this.segments.clear();
+  }
+
+  /*
+  Indexes every whole, intact record in the segment, truncating it at the first one that isn't. Returns whether the
+  whole segment was good.
+   */
+  private boolean scan(@NotNull Segment segment, int segmentIndex) throws IOException {
+    ByteBuffer mapped = segment.map();
+    CRC32 crc = new CRC32();
+    int offset = 0;
+    while (offset < segment.length) {
+      boolean intact = false;
+      if (segment.length - offset >= HEADER_BYTES) {
+        int length = mapped.getInt(offset);
+        int checksum = mapped.getInt(offset + Integer.BYTES);
+        if (length >= 0 && length <= segment.length - offset - HEADER_BYTES) {
+          ByteBuffer payload = mapped.duplicate();
+          payload.position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + length);
+          crc.reset();
+          crc.update(payload);
+          intact = (int) crc.getValue() == checksum;
+          if (intact) {
+            index(segmentIndex, offset);
+            offset += HEADER_BYTES + length;
+          }
+        }
+      }
+      if (!intact) {
+        long lost = segment.length - offset;
+        int at = offset;
+        Log.warn(() -> "Truncating " + segment.path + " at " + at + ", dropping " + lost + " damaged bytes");
+        segment.truncate(offset);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void index(int segment, int offset) {
+    if (this.size == this.segmentOf.length) {
+      this.segmentOf = Arrays.copyOf(this.segmentOf, 2 * this.size);
+      this.offsetOf = Arrays.copyOf(this.offsetOf, 2 * this.size);
+    }
+    this.segmentOf[this.size] = segment;
+    this.offsetOf[this.size] = offset;
+    this.size++;
+  }
+
+  /*
+  One segment file. The map covers the file as it was when last mapped, and is redone once the file is twice that size
+  (mapping past the end of the file would grow it), so a segment is remapped a handful of times however many records go
+  into it.
+   */
+  private static final class Segment implements Closeable {
+    final Path path;
+    final FileChannel channel;
+    long length;
+    private MappedByteBuffer mapped;
+
+    Segment(@NotNull Path path) throws IOException {
+      this.path = path;
+      this.channel = FileChannel.open(path,
+          StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.length = this.channel.size();
+    }
+
+    @NotNull
+    ByteBuffer map() throws IOException {
+      if (this.mapped == null || (this.length > this.mapped.capacity() && this.length >= 2L * this.mapped.capacity())) {
+        this.mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.length);
+      }
+      return this.mapped;
+    }
+
+    /*
+    The block bytes of the record at offset, as a view into the map if it's in there, or else read from the file
+     */
+    @NotNull
+    ByteBuffer read(int offset) throws IOException {
+      ByteBuffer record = map().duplicate();
+      if (offset + HEADER_BYTES <= record.capacity()) {
+        int length = record.getInt(offset);
+        if (offset + HEADER_BYTES + length <= record.capacity()) {
+          record.position(offset + HEADER_BYTES).limit(offset + HEADER_BYTES + length);
+          return record.slice();
+        }
+      }
+      ByteBuffer header = readFully(ByteBuffer.allocate(HEADER_BYTES), offset);
+      return readFully(ByteBuffer.allocate(header.getInt(0)), offset + HEADER_BYTES);
+    }
+
+    @NotNull
+    private ByteBuffer readFully(@NotNull ByteBuffer into, long position) throws IOException {
+      while (into.hasRemaining()) {
+        if (this.channel.read(into, position + into.position()) < 0) {
+          throw new IOException(this.path + " ended part way through a record at " + position);
+        }
+      }
+      into.flip();
+      return into;
+    }
+
+    void truncate(long length) throws IOException {
+      this.channel.truncate(length);
+      this.channel.force(true);
+      this.length = length;
+      this.mapped = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.mapped = null;
+      this.channel.close();
+    }
+  }
+}
@@ -0,0 +1,502 @@
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * Headers-first sync: catches a server's chain up to a peer's by fetching and checking the peer's header chain, then
+ * downloading the block bodies in ranges from several peers at once.
+ * <p>
+ * It starts by sending the peer a locator (see ChainIndex.locator), which the peer answers with the newest block
+ * both chains share. Only headers after that block are fetched, so a fork costs the blocks since it and no more.
+ * <p>
+ * A header is a block without its certificate_revocations, which hashes the same as the whole block. So the header
+ * chain can be checked (heights, links, certificates) before any body arrives. Each body is checked against its
+ * header as it arrives: it must hash to the same value, and its revocations must give the header's merkle root.
+ * While the new blocks only extend our chain, they're added as soon as every one before them is in. Blocks that would
+ * replace ours (a fork) are held until every one of them is here, then switched to in one step, so the chain and the
+ * revoked list go straight from our chain to the new one, and stay on ours if the sync fails. The old chain is only
+ * replaced by a header chain that's longer.
+ * <p>
+ * Each body peer has at most one range of {@link #BODY_RANGE_BLOCKS} blocks outstanding and gets the next unclaimed
+ * range when it finishes one, so faster peers do more of the work. A peer that sends a wrong or empty body, sends an
+ * error, disconnects, or has had its range for {@link #CLAIM_TIMEOUT_MILLIS} while another peer sits idle, loses its
+ * range to the others. A sync that hasn't made progress in {@link #STALL_MILLIS} is given up (see {@link #tick}), and
+ * a new one can be started.
+ * <p>
+ * Only the state machine uses it. Times come from the clock it's given, in milliseconds.
+ */
+public class BlockSync {
+  public static final int BODY_RANGE_BLOCKS = 128;
+  public static final long STALL_MILLIS = 10_000;
+  public static final long CLAIM_TIMEOUT_MILLIS = 5_000;
+  // how many times headers that don't follow on from our chain send us back to finding the fork, before giving up
+  public static final int MAX_RELOCATES = 3;
+
+  /**
+   * The server a sync runs on: its chain, how it checks blocks, and how it reaches peers (see ObserverRoleServer)
+   */
+  public interface Host {
+    @NotNull
+    ChainIndex chain();
+
+    /*
+    Whether the block could go at the height in the chain
+     */
+    boolean followsOn(int height, @NotNull Dcrl.BlockMessage block);
+
+    /*
+    Checks headers that follow on from the block with previousHash, the first of them at fromHeight (from 0, a whole
+    chain, whose first block must be the genesis block)
+     */
+    @NotNull
+    BlockchainVerifier.Result verify(@NotNull List<Dcrl.BlockMessage> headers,
+                                     int fromHeight,
+                                     @NotNull ByteString previousHash);
+
+    void send(@NotNull NetworkIdentity peer, @NotNull Dcrl.DCRLMessage message);
+
+    /*
+    Called after each change the sync makes to the chain
+     */
+    void chainChanged();
+
+    /*
+    Called when a sync ends, however it ended
+     */
+    void finished();
+  }
+
+  private final Host host;
+  private final LongSupplier clock;
+
+  private boolean active = false;
+  // waiting for the header source to tell us where its chain forked from ours
+  private boolean locating = false;
+  private int relocates = 0;
+  private long lastProgress;
+  @Nullable
+  private NetworkIdentity headerSource;
+  private final Set<NetworkIdentity> bodySources = new LinkedHashSet<>();
+
+  // the header chain being synced to, starting at height base
+  private int base;
+  private final List<Dcrl.BlockMessage> headers = new ArrayList<>();
+  private final List<ByteString> headerHashes = new ArrayList<>();
+
+  // bodies that have arrived but aren't in the chain yet, by index into headers; everything before applied is in
+  @Nullable
+  private Dcrl.BlockMessage[] bodies;
+  private int applied;
+  private final Deque<int[]> unclaimed = new ArrayDeque<>();
+  private final Map<NetworkIdentity, Claim> claimed = new HashMap<>();
+
+  public BlockSync(@NotNull Host host, @NotNull LongSupplier clock) {
+    this.host = host;
+    this.clock = clock;
+  }
+
+  public BlockSync(@NotNull Host host) {
+    this(host, System::currentTimeMillis);
+  }
+
+  public boolean isActive() {
+    return this.active;
+  }
+
+  /*
+  Starts syncing to headerSource's chain, with bodies from bodySources (and headerSource). Does nothing if a sync is
+  already making progress.
+   */
+  public void start(@NotNull NetworkIdentity headerSource, @NotNull Iterable<NetworkIdentity> bodySources) {
+    if (this.active && this.clock.getAsLong() - this.lastProgress < STALL_MILLIS) {
+      return;
+    }
+    reset();
+    this.active = true;
+    this.lastProgress = this.clock.getAsLong();
+    this.headerSource = headerSource;
+    this.bodySources.add(headerSource);
+    for (NetworkIdentity peer : bodySources) {
+      this.bodySources.add(peer);
+    }
+    if (this.host.chain().isEmpty()) {
+      Log.debug(() -> "Syncing headers from " + headerSource + " from the start");
+      requestHeaders(0);
+    } else {
+      Log.debug(() -> "Looking for where " + headerSource + "'s chain forked from ours");
+      requestCommonAncestor();
+    }
+  }
+
+  /*
+  Moves on to the headers after the newest block the header source's chain shares with ours, if its chain goes further
+   */
+  @Nullable
+  public Dcrl.DCRLMessage handleLocator(@NotNull NetworkIdentity identity, @NotNull Dcrl.ForkLocatorResponse message) {
+    if (!this.active || !this.locating || !identity.equals(this.headerSource)) {
+      return null;
+    }
+    this.locating = false;
+    int commonHeight = (int) Math.min(message.getCommonHeight(), Integer.MAX_VALUE);
+    if (commonHeight > this.host.chain().tipHeight() ||
+        !this.host.chain().hashAt(commonHeight).equals(message.getCommonHash())) {
+      abort("the common block it gave, at height " + message.getCommonHeight() + ", isn't in our chain");
+      return ProtocolServerUtil.buildErrorMessage("That block isn't in our chain.");
+    } else if (message.getTipHeight() <= this.host.chain().tipHeight()) {
+      Log.debug(() -> "Already have a chain at least as long as " + this.headerSource + "'s");
+      finish();
+      return null;
+    }
+
+    Log.debug(() -> "Our chain and " + identity + "'s share every block up to " + commonHeight);
+    requestHeaders(commonHeight + 1);
+    return null;
+  }
+
+  /*
+  Stops counting on the peer for this sync, because it sent an error or went away. Its range, if it had one, goes to
+  the others. Losing the header source before all the headers are in gives up the sync.
+   */
+  public void dropPeer(@NotNull NetworkIdentity peer, @NotNull String why) {
+    if (!this.active) {
+      return;
+    }
+    if (peer.equals(this.headerSource) && this.bodies == null) {
+      abort("it " + why);
+      return;
+    }
+    this.bodySources.remove(peer);
+    Claim claim = this.claimed.remove(peer);
+    if (claim != null) {
+      Log.debug(() -> peer + " " + why + ", handing its blocks from height " + (this.base + claim.range[0]) +
+          " to the others");
+      this.unclaimed.addFirst(claim.range);
+      handOut();
+    }
+  }
+
+  /*
+  Gives up a sync that's stalled, and moves ranges that have been out too long to idle peers. Call it regularly.
+   */
+  public void tick() {
+    if (!this.active) {
+      return;
+    }
+    long now = this.clock.getAsLong();
+    if (now - this.lastProgress >= STALL_MILLIS) {
+      abort("nothing useful arrived for " + STALL_MILLIS + "ms");
+      return;
+    }
+    if (this.bodies == null) {
+      return;
+    }
+    for (Map.Entry<NetworkIdentity, Claim> slow : new ArrayList<>(this.claimed.entrySet())) {
+      if (now - slow.getValue().since < CLAIM_TIMEOUT_MILLIS) {
+        continue;
+      }
+      NetworkIdentity idle = idlePeer();
+      if (idle == null) {
+        return;
+      }
+      Log.debug(() -> slow.getKey() + " is taking too long, handing its blocks to " + idle);
+      this.claimed.remove(slow.getKey());
+      this.bodySources.remove(slow.getKey());
+      claim(idle, slow.getValue().range);
+    }
+  }
+
+  /*
+  Whether a BlockRangeResponse from the peer is one of ours
+   */
+  public boolean isWaitingOn(@NotNull NetworkIdentity peer) {
+    return this.active && this.claimed.containsKey(peer);
+  }
+
+  /*
+  Adds checked headers to the header chain, asking for more until the header source runs out, then moves on to the
+  bodies. Returns an error for the header source, if it sent something wrong.
+   */
+  @Nullable
+  public Dcrl.DCRLMessage handleHeaders(@NotNull NetworkIdentity identity, @NotNull Dcrl.HeadersResponse message) {
+    if (!this.active || this.locating || this.bodies != null || !identity.equals(this.headerSource)) {
+      return null;
+    }
+    List<Dcrl.BlockMessage> chunk = message.getHeadersList();
+    if (chunk.isEmpty()) {
+      startBodies();
+      return null;
+    }
+
+    int fromHeight = (int) Math.min(message.getFromHeight(), Integer.MAX_VALUE);
+    BlockchainVerifier.Result result;
+    if (this.headers.isEmpty()) {
+      // the first headers have to follow on from our chain. if they don't, ours changed since the fork was found
+      if (fromHeight == 0 && !this.host.followsOn(0, chunk.get(0))) {
+        abort("the header chain doesn't start with our genesis block");
+        return ProtocolServerUtil.buildErrorMessage("That chain doesn't start with our genesis block.");
+      } else if (fromHeight > this.host.chain().size() || !this.host.followsOn(fromHeight, chunk.get(0))) {
+        if (++this.relocates > MAX_RELOCATES) {
+          abort("its headers kept not following on from our chain");
+          return null;
+        }
+        requestCommonAncestor();
+        return null;
+      }
+      result = this.host.verify(chunk, fromHeight,
+          fromHeight == 0 ? ByteString.EMPTY : this.host.chain().hashAt(fromHeight - 1));
+      this.base = fromHeight;
+    } else {
+      if (fromHeight != this.base + this.headers.size()) {
+        requestHeaders(this.base + this.headers.size());
+        return null;
+      }
+      result = this.host.verify(chunk, fromHeight, this.headerHashes.get(this.headerHashes.size() - 1));
+    }
+    if (!result.isValid()) {
+      abort("header " + result.firstInvalidHeight + " was invalid: " + result.reason);
+      return ProtocolServerUtil.buildErrorMessage("Invalid header at height " + result.firstInvalidHeight + ": " +
+          result.reason);
+    }
+
+    for (Dcrl.BlockMessage header : chunk) {
+      this.headers.add(header.getCertificateRevocationsCount() == 0
+          ? header
+          : header.toBuilder().clearCertificateRevocations().build());
+      this.headerHashes.add(Util.hash(header));
+    }
+    this.lastProgress = this.clock.getAsLong();
+
+    if (message.getTipHeight() >= this.base + this.headers.size()) {
+      requestHeaders(this.base + this.headers.size());
+    } else {
+      startBodies();
+    }
+    return null;
+  }
+
+  /*
+  Takes the bodies that match their headers, adds any that can go in the chain, and gives the peer more to do
+   */
+  public void handleBodies(@NotNull NetworkIdentity identity, @NotNull Dcrl.BlockRangeResponse message) {
+    Claim claim = this.claimed.remove(identity);
+    if (claim == null || this.bodies == null) {
+      return;
+    }
+    int[] range = claim.range;
+
+    List<Dcrl.BlockMessage> blocks = message.getBlocksList();
+    int accepted = 0;
+    if (message.getFromHeight() == this.base + range[0]) {
+      while (accepted < blocks.size() && range[0] + accepted < range[1] &&
+          matchesHeader(blocks.get(accepted), range[0] + accepted)) {
+        this.bodies[range[0] + accepted] = blocks.get(accepted);
+        accepted++;
+      }
+    }
+    range[0] += accepted;
+
+    boolean wrongBody = accepted < blocks.size() && range[0] < range[1];
+    if (accepted == 0 || wrongBody) {
+      // an empty, misplaced or wrong reply: this peer can't help, so what's left goes to the others
+      Log.debug(() -> identity + " sent bodies that didn't match their headers, dropping it from the sync");
+      this.bodySources.remove(identity);
+      this.unclaimed.addFirst(range);
+    } else if (range[0] < range[1]) {
+      // the reply was cut short to keep it small, so ask for the rest
+      claim(identity, range);
+    }
+
+    if (accepted > 0) {
+      this.lastProgress = this.clock.getAsLong();
+      applyReady();
+    }
+    if (this.active) {
+      handOut();
+    }
+  }
+
+  /*
+  Gives every idle peer a range, if there are any left, and gives up if nobody's left to send the rest
+   */
+  private void handOut() {
+    for (NetworkIdentity peer : this.bodySources) {
+      if (!this.claimed.containsKey(peer)) {
+        claimNext(peer);
+      }
+    }
+    if (this.claimed.isEmpty() && this.applied < this.headers.size()) {
+      abort("no peer could send the bodies from height " + (this.base + this.applied));
+    }
+  }
+
+  @Nullable
+  private NetworkIdentity idlePeer() {
+    for (NetworkIdentity peer : this.bodySources) {
+      if (!this.claimed.containsKey(peer)) {
+        return peer;
+      }
+    }
+    return null;
+  }
+
+  private void startBodies() {
+    // headers we already have the blocks for don't need downloading
+    int shared = this.host.chain().sharedPrefixLength(this.base, this.headers);
+    this.base += shared;
+    this.headers.subList(0, shared).clear();
+    this.headerHashes.subList(0, shared).clear();
+    if (this.headers.isEmpty() || this.base + this.headers.size() <= this.host.chain().size()) {
+      Log.debug(() -> "Already have a chain at least as long as " + this.headerSource + "'s");
+      finish();
+      return;
+    }
+
+    Log.info(() -> "Downloading " + this.headers.size() + " blocks from height " + this.base + " from " +
+        this.bodySources.size() + " peers");
+    this.bodies = new Dcrl.BlockMessage[this.headers.size()];
+    this.applied = 0;
+    for (int from = 0; from < this.headers.size(); from += BODY_RANGE_BLOCKS) {
+      this.unclaimed.addLast(new int[]{from, Math.min(from + BODY_RANGE_BLOCKS, this.headers.size())});
+    }
+    for (NetworkIdentity peer : this.bodySources) {
+      claimNext(peer);
+    }
+  }
+
+  private boolean matchesHeader(@NotNull Dcrl.BlockMessage block, int index) {
+    Dcrl.BlockMessage header = this.headers.get(index);
+    return Util.hash(block).equals(this.headerHashes.get(index)) &&
+        ByteString.copyFrom(Util.merkleRoot(block.getCertificateRevocationsList())).equals(header.getMerkleRoot());
+  }
+
+  /*
+  Adds the bodies that are next in line to the chain, if they only extend it; if they'd replace any of our blocks,
+  only once all of them are here
+   */
+  private void applyReady() {
+    int from = this.applied;
+    int at = this.base + from;
+    int ready = from;
+    while (ready < this.bodies.length && this.bodies[ready] != null) {
+      ready++;
+    }
+    if (ready == from || (at < this.host.chain().size() && ready < this.bodies.length)) {
+      return;
+    }
+    if (at > this.host.chain().size() || !this.host.followsOn(at, this.bodies[from])) {
+      abort("the chain changed underneath the sync");
+      return;
+    } else if (this.base + this.bodies.length <= this.host.chain().size()) {
+      Log.debug(() -> "Our chain grew at least as long as " + this.headerSource + "'s while syncing");
+      finish();
+      return;
+    }
+
+    this.applied = ready;
+    int previousSize = this.host.chain().size();
+    int changedFrom = this.host.chain().replaceFrom(at, Arrays.asList(this.bodies).subList(from, ready));
+    Arrays.fill(this.bodies, from, ready, null);
+    this.host.chainChanged();
+    if (changedFrom < previousSize) {
+      Log.info(() -> "Switched to " + this.headerSource + "'s chain from height " + changedFrom);
+    }
+    if (this.applied == this.bodies.length) {
+      Log.info(() -> "Synced to height " + this.host.chain().tipHeight());
+      finish();
+    }
+  }
+
+  private void claimNext(@NotNull NetworkIdentity peer) {
+    int[] range = this.unclaimed.pollFirst();
+    if (range != null) {
+      claim(peer, range);
+    }
+  }
+
+  private void claim(@NotNull NetworkIdentity peer, @NotNull int[] range) {
+    this.claimed.put(peer, new Claim(range, this.clock.getAsLong()));
+    this.host.send(peer, Dcrl.DCRLMessage.newBuilder()
+        .setUnsignedMessage(
+            Dcrl.UnsignedMessage.newBuilder()
+                .setBlockRangeRequest(
+                    Dcrl.BlockRangeRequest.newBuilder()
+                        .setFromHeight(this.base + range[0])
+                        .setLimit(range[1] - range[0])
+                )
+        )
+        .build());
+  }
+
+  private void requestCommonAncestor() {
+    this.locating = true;
+    this.host.send(this.headerSource, Dcrl.DCRLMessage.newBuilder()
+        .setUnsignedMessage(
+            Dcrl.UnsignedMessage.newBuilder()
+                .setForkLocatorRequest(
+                    Dcrl.ForkLocatorRequest.newBuilder()
+                        .addAllBlockHashes(this.host.chain().locator())
+                )
+        )
+        .build());
+  }
+
+  private void requestHeaders(int fromHeight) {
+    this.host.send(this.headerSource, Dcrl.DCRLMessage.newBuilder()
+        .setUnsignedMessage(
+            Dcrl.UnsignedMessage.newBuilder()
+                .setHeadersRequest(
+                    Dcrl.HeadersRequest.newBuilder()
+                        .setFromHeight(fromHeight)
+                )
+        )
+        .build());
+  }
+
+  private void abort(@NotNull String reason) {
+    Log.info(() -> "Gave up syncing from " + this.headerSource + ": " + reason);
+    finish();
+  }
+
+  private void finish() {
+    reset();
+    this.host.finished();
+  }
+
+  private void reset() {
+    this.active = false;
+    this.locating = false;
+    this.relocates = 0;
+    this.headerSource = null;
+    this.bodySources.clear();
+    this.headers.clear();
+    this.headerHashes.clear();
+    this.bodies = null;
+    this.applied = 0;
+    this.unclaimed.clear();
+    this.claimed.clear();
+  }
+
+  /*
+  A range of indexes into headers, [range[0], range[1]), asked of a peer at a time
+   */
+  private static final class Claim {
+    final int[] range;
+    final long since;
+
+    Claim(@NotNull int[] range, long since) {
+      this.range = range;
+      this.since = since;
+    }
+  }
+}
@@ -0,0 +1,181 @@
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Checks a whole received blockchain, or a run of blocks that should follow on from a known one, in parallel.
+ * <p>
+ * The chain is split into ranges of {@link #RANGE_SIZE} blocks that are checked on the common fork-join pool. Within a
+ * range, every block must have a valid and trusted participation certificate, the next height, and the hash of the
+ * block before it. The first block of each range can't see the hash of the block before it until the range before has
+ * been hashed, so those links are checked once every range is done.
+ * <p>
+ * Block 0 is taken to be the genesis block, like the serial walk this replaces did.
+ */
+public class BlockchainVerifier {
+  public static final int RANGE_SIZE = 256;
+
+  private final Map<ByteString, Dcrl.Certificate> trustStore;
+  private final Predicate<ByteString> isRevoked;
+
+  public BlockchainVerifier(@NotNull Map<ByteString, Dcrl.Certificate> trustStore,
+                            @NotNull Predicate<ByteString> isRevoked) {
+    this.trustStore = trustStore;
+    this.isRevoked = isRevoked;
+  }
+
+  /**
+   * The outcome of verifying a chain: either valid, or the height of the first block that isn't and why.
+   */
+  public static final class Result {
+    public static final Result VALID = new Result(-1, null);
+
+    public final int firstInvalidHeight;
+    @Nullable
+    public final String reason;
+
+    private Result(int firstInvalidHeight, @Nullable String reason) {
+      this.firstInvalidHeight = firstInvalidHeight;
+      this.reason = reason;
+    }
+
+    public boolean isValid() {
+      return this.firstInvalidHeight < 0;
+    }
+
+    @NotNull
+    private static Result earliest(@NotNull Result a, @NotNull Result b) {
+      if (a.isValid()) return b;
+      if (b.isValid()) return a;
+      return a.firstInvalidHeight <= b.firstInvalidHeight ? a : b;
+    }
+  }
+
+  @NotNull
+  public Result verify(@NotNull List<Dcrl.BlockMessage> chain) {
+    if (chain.size() == 0) {
+      return new Result(0, "The chain was empty");
+    }
+    return verify(chain.subList(1, chain.size()), Constants.GENESIS_BLOCK_HEIGHT + 1, Constants.GENESIS_BLOCK_HASH);
+  }
+
+  /*
+  Checks blocks that should follow on from the block with previousHash, the first of them at firstHeight. Invalid
+  results give the actual height of the first bad block.
+   */
+  @NotNull
+  public Result verify(@NotNull List<Dcrl.BlockMessage> blocks, int firstHeight, @NotNull ByteString previousHash) {
+    // hashes[i] is the hash of the block before blocks[i]
+    ByteString[] hashes = new ByteString[blocks.size() + 1];
+    hashes[0] = previousHash;
+    AtomicInteger earliestFailure = new AtomicInteger(Integer.MAX_VALUE);
+
+    Result result = ForkJoinPool.commonPool().invoke(
+        new RangeTask(blocks, firstHeight, hashes, earliestFailure, 0, blocks.size()));
+
+    // the links between ranges, now that every block has been hashed
+    for (int start = RANGE_SIZE; start < blocks.size(); start += RANGE_SIZE) {
+      if (!result.isValid() && firstHeight + start >= result.firstInvalidHeight) {
+        break;
+      }
+      Result link = checkLink(blocks.get(start), firstHeight + start, hashes[start]);
+      if (!link.isValid()) {
+        result = Result.earliest(result, link);
+        break;
+      }
+    }
+    return result;
+  }
+
+  /*
+  Checks blocks [from, to), recursively halving the range until it's at most RANGE_SIZE blocks. Ranges are always split
+  on a multiple of RANGE_SIZE, so the boundaries are the ones verify() checks afterwards.
+   */
+  private class RangeTask extends RecursiveTask<Result> {
+    private final List<Dcrl.BlockMessage> blocks;
+    private final int firstHeight;
+    private final ByteString[] hashes;
+    private final AtomicInteger earliestFailure;
+    private final int from;
+    private final int to;
+
+    RangeTask(List<Dcrl.BlockMessage> blocks, int firstHeight, ByteString[] hashes, AtomicInteger earliestFailure,
+              int from, int to) {
+      this.blocks = blocks;
+      this.firstHeight = firstHeight;
+      this.hashes = hashes;
+      this.earliestFailure = earliestFailure;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Result compute() {
+      if (this.to - this.from > RANGE_SIZE) {
+        int ranges = (this.to - this.from + RANGE_SIZE - 1) / RANGE_SIZE;
+        int middle = this.from + (ranges / 2) * RANGE_SIZE;
+        RangeTask left = new RangeTask(this.blocks, this.firstHeight, this.hashes, this.earliestFailure,
+            this.from, middle);
+        RangeTask right = new RangeTask(this.blocks, this.firstHeight, this.hashes, this.earliestFailure,
+            middle, this.to);
+        right.fork();
+        Result leftResult = left.compute();
+        return Result.earliest(leftResult, right.join());
+      }
+
+      for (int b = this.from; b < this.to; b++) {
+        // a block before this one is already known to be bad, so nothing here can change the answer
+        if (b > this.earliestFailure.get()) {
+          return Result.VALID;
+        }
+        Dcrl.BlockMessage block = this.blocks.get(b);
+        int height = this.firstHeight + b;
+        Result result = checkBlock(block, height);
+        // the first block's previous hash is known from the start, the others' once this range has hashed them
+        if (result.isValid() && (b > this.from || b == 0)) {
+          result = checkLink(block, height, this.hashes[b]);
+        }
+        if (!result.isValid()) {
+          this.earliestFailure.accumulateAndGet(b, Math::min);
+          return result;
+        }
+        this.hashes[b + 1] = Util.hash(block);
+      }
+      return Result.VALID;
+    }
+  }
+
+  @NotNull
+  private Result checkBlock(@NotNull Dcrl.BlockMessage block, int height) {
+    if (block.getHeight() != height) {
+      return new Result(height, "Height didn't match: expected " + height + " but was " + block.getHeight());
+    }
+
+    StringBuilder errorCollector = new StringBuilder();
+    if (!CryptoKt.verifyVerbose(block.getCertificate(),
+        errorCollector::append,
+        this.trustStore::get,
+        this.isRevoked::test,
+        Dcrl.CertificateUsage.PARTICIPATION
+    )) {
+      return new Result(height, "Block certificate was invalid: " + errorCollector);
+    }
+    return Result.VALID;
+  }
+
+  @NotNull
+  private static Result checkLink(@NotNull Dcrl.BlockMessage block, int height, @NotNull ByteString previousHash) {
+    if (!previousHash.equals(block.getPreviousBlock())) {
+      return new Result(height, "Hashes didn't match: previous block hash should have been " + previousHash +
+          " but instead was " + block.getPreviousBlock());
+    }
+    return Result.VALID;
+  }
+}
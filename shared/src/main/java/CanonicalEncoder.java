@@ -0,0 +1,171 @@
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Writes certificates and blocks in the byte layouts that get hashed and signed (see {@link Util}) straight to where
+ * they're going: a reusable per-thread SHA-256 digest, an array of exactly the right size, or any OutputStream (like
+ * {@link CryptoEngine}'s signing state). Fields are written as they are, so nothing is concatenated or copied first.
+ * <p>
+ * A certificate has two layouts, which only differ in the byte order of its numbers. The one hashed by hashCert is
+ * little-endian (it was originally built with Guava's Hasher); the digests used for signatures and block hashes are
+ * big-endian.
+ */
+public final class CanonicalEncoder {
+  private static final ThreadLocal<CanonicalEncoder> LOCAL = ThreadLocal.withInitial(CanonicalEncoder::new);
+
+  private final MessageDigest sha256;
+  private final byte[] number = new byte[8];
+  private final OutputStream digestSink = new OutputStream() {
+    @Override
+    public void write(int b) {
+      sha256.update((byte) b);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) {
+      sha256.update(b, off, len);
+    }
+  };
+  private final ArraySink arraySink = new ArraySink();
+
+  private CanonicalEncoder() {
+    try {
+      this.sha256 = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 isn't available", e);
+    }
+  }
+
+  /*
+  The same bytes as Util.hashCert always produced
+   */
+  @NotNull
+  public static ByteString hashCert(@NotNull Dcrl.CertificateOrBuilder cert) {
+    CanonicalEncoder encoder = LOCAL.get();
+    encoder.sha256.reset();
+    try {
+      encoder.writeCertificate(cert, encoder.digestSink, true, true);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return UnsafeByteOperations.unsafeWrap(encoder.sha256.digest());
+  }
+
+  /*
+  The same bytes as Util.hashBlock always produced: the certificate's digestForHash, then the rest of the header
+   */
+  @NotNull
+  public static ByteString hashBlock(@NotNull Dcrl.BlockMessageOrBuilder block) {
+    CanonicalEncoder encoder = LOCAL.get();
+    encoder.sha256.reset();
+    try {
+      encoder.writeCertificate(block.getCertificate(), encoder.digestSink, false, true);
+      encoder.writeLong(block.getHeight(), encoder.digestSink, true);
+      block.getPreviousBlock().writeTo(encoder.digestSink);
+      encoder.writeLong(block.getTimestamp(), encoder.digestSink, true);
+      block.getMerkleRoot().writeTo(encoder.digestSink);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return UnsafeByteOperations.unsafeWrap(encoder.sha256.digest());
+  }
+
+  @NotNull
+  public static byte[] digestForHash(@NotNull Dcrl.CertificateOrBuilder cert) {
+    return LOCAL.get().certificateToArray(cert, true);
+  }
+
+  @NotNull
+  public static byte[] digestForSignature(@NotNull Dcrl.CertificateOrBuilder cert) {
+    return LOCAL.get().certificateToArray(cert, false);
+  }
+
+  /*
+  Writes digestForSignature(cert) to the stream without building it first
+   */
+  public static void writeDigestForSignature(@NotNull Dcrl.CertificateOrBuilder cert,
+                                             @NotNull OutputStream out) throws IOException {
+    LOCAL.get().writeCertificate(cert, out, false, false);
+  }
+
+  @NotNull
+  private byte[] certificateToArray(@NotNull Dcrl.CertificateOrBuilder cert, boolean withIssuerSignature) {
+    int size = cert.getSubjectBytes().size() + Long.BYTES + Integer.BYTES + Integer.BYTES * cert.getUsagesCount() +
+        cert.getSigningPublicKey().size() + cert.getIssuerCertificateHash().size() +
+        (withIssuerSignature ? cert.getIssuerSignature().size() : 0);
+    byte[] digest = new byte[size];
+    this.arraySink.reset(digest);
+    try {
+      writeCertificate(cert, this.arraySink, false, withIssuerSignature);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      this.arraySink.reset(null);
+    }
+    return digest;
+  }
+
+  private void writeCertificate(@NotNull Dcrl.CertificateOrBuilder cert,
+                                @NotNull OutputStream out,
+                                boolean littleEndian,
+                                boolean withIssuerSignature) throws IOException {
+    cert.getSubjectBytes().writeTo(out);
+    writeLong(cert.getValidFrom(), out, littleEndian);
+    writeInt(cert.getValidLength(), out, littleEndian);
+    for (int i = 0; i < cert.getUsagesCount(); i++) {
+      writeInt(cert.getUsagesValue(i), out, littleEndian);
+    }
+    cert.getSigningPublicKey().writeTo(out);
+    cert.getIssuerCertificateHash().writeTo(out);
+    if (withIssuerSignature) {
+      cert.getIssuerSignature().writeTo(out);
+    }
+  }
+
+  private void writeLong(long value, @NotNull OutputStream out, boolean littleEndian) throws IOException {
+    for (int i = 0; i < Long.BYTES; i++) {
+      int shift = littleEndian ? 8 * i : 8 * (Long.BYTES - 1 - i);
+      this.number[i] = (byte) (value >>> shift);
+    }
+    out.write(this.number, 0, Long.BYTES);
+  }
+
+  private void writeInt(int value, @NotNull OutputStream out, boolean littleEndian) throws IOException {
+    for (int i = 0; i < Integer.BYTES; i++) {
+      int shift = littleEndian ? 8 * i : 8 * (Integer.BYTES - 1 - i);
+      this.number[i] = (byte) (value >>> shift);
+    }
+    out.write(this.number, 0, Integer.BYTES);
+  }
+
+  /*
+  Fills an array that's already exactly the right size
+   */
+  private static final class ArraySink extends OutputStream {
+    private byte[] target;
+    private int position;
+
+    void reset(byte[] target) {
+      this.target = target;
+      this.position = 0;
+    }
+
+    @Override
+    public void write(int b) {
+      this.target[this.position++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) {
+      System.arraycopy(b, off, this.target, this.position, len);
+      this.position += len;
+    }
+  }
+}
@@ -0,0 +1,248 @@
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chain we currently believe in, indexed both ways: height to block (and its hash), and hash to height, so any
+ * block can be found in constant time by either.
+ * <p>
+ * Only the state machine uses it, apart from {@link #publishedTipHeight}, which any thread can read. If a
+ * {@link BlockStore} is attached, every change is written through to it. A failed write is logged and the in-memory
+ * chain carries on; the store is kept to the blocks it's known to hold as they are, and caught up from memory on the
+ * next change.
+ */
+public class ChainIndex {
+  private final List<Dcrl.BlockMessage> blocks = new ArrayList<>();
+  private final List<ByteString> hashes = new ArrayList<>();
+  private final Map<ByteString, Integer> heightByHash = new HashMap<>();
+  @Nullable
+  private BlockStore store;
+  // how many of our blocks the store is known to hold as they are, which is size() unless a write failed
+  private int storedSize;
+  // tipHeight() as of the last change, for other threads (like the metrics endpoint) to read
+  private volatile int publishedTipHeight = -1;
+
+  /*
+  How many blocks there are, which is also the height the next one will have
+   */
+  public int size() {
+    return this.blocks.size();
+  }
+
+  public boolean isEmpty() {
+    return this.blocks.isEmpty();
+  }
+
+  /*
+  The height of the newest block, -1 when empty
+   */
+  public int tipHeight() {
+    return this.blocks.size() - 1;
+  }
+
+  /*
+  The height of the newest block as of the last change, which unlike tipHeight() any thread can read
+   */
+  public int publishedTipHeight() {
+    return this.publishedTipHeight;
+  }
+
+  @NotNull
+  public Dcrl.BlockMessage tip() {
+    return get(tipHeight());
+  }
+
+  @NotNull
+  public ByteString tipHash() {
+    return hashAt(tipHeight());
+  }
+
+  @NotNull
+  public Dcrl.BlockMessage get(int height) {
+    return this.blocks.get(height);
+  }
+
+  @NotNull
+  public ByteString hashAt(int height) {
+    return this.hashes.get(height);
+  }
+
+  /*
+  The height of the block with this hash, or -1 if it isn't in the chain
+   */
+  public int heightOf(@NotNull ByteString hash) {
+    Integer height = this.heightByHash.get(hash);
+    return height == null ? -1 : height;
+  }
+
+  public boolean contains(@NotNull ByteString hash) {
+    return this.heightByHash.containsKey(hash);
+  }
+
+  @Nullable
+  public Dcrl.BlockMessage getByHash(@NotNull ByteString hash) {
+    int height = heightOf(hash);
+    return height < 0 ? null : get(height);
+  }
+
+  /*
+  Hashes of blocks from the newest back: the last ten, then twice as far apart each time, ending with block 0. Another
+  server can find the newest block its chain shares with this one from it, however far back they forked.
+   */
+  @NotNull
+  public List<ByteString> locator() {
+    List<ByteString> locator = new ArrayList<>();
+    int step = 1;
+    for (int height = tipHeight(); height > 0; height -= step) {
+      locator.add(hashAt(height));
+      if (locator.size() >= 10) {
+        step *= 2;
+      }
+    }
+    if (!isEmpty()) {
+      locator.add(hashAt(0));
+    }
+    return locator;
+  }
+
+  /*
+  The blocks from height from (inclusive) to to (exclusive), as a read-only view
+   */
+  @NotNull
+  public List<Dcrl.BlockMessage> range(int from, int to) {
+    return Collections.unmodifiableList(this.blocks.subList(from, to));
+  }
+
+  /*
+  The whole chain, as a read-only view
+   */
+  @NotNull
+  public List<Dcrl.BlockMessage> asList() {
+    return range(0, size());
+  }
+
+  /*
+  Adds the block as the new tip. It's up to the caller to have checked that it belongs there.
+   */
+  public void append(@NotNull Dcrl.BlockMessage block) {
+    appendInMemory(block);
+    writeThrough();
+  }
+
+  /*
+  Drops every block from the height onwards
+   */
+  public void truncate(int height) {
+    for (int h = size() - 1; h >= height; h--) {
+      this.heightByHash.remove(this.hashes.remove(h));
+      this.blocks.remove(h);
+    }
+    this.publishedTipHeight = tipHeight();
+    this.storedSize = Math.min(this.storedSize, Math.max(height, 0));
+    writeThrough();
+  }
+
+  /*
+  Makes the chain match the given one, keeping (and not rewriting) whatever prefix they already share. Returns the
+  length of that prefix.
+   */
+  public int replaceWith(@NotNull List<Dcrl.BlockMessage> chain) {
+    return replaceFrom(0, chain);
+  }
+
+  /*
+  Makes the chain from the height (at most size()) onwards match the given blocks, keeping any of them we already
+  have. Returns the height of the first block that changed.
+   */
+  public int replaceFrom(int height, @NotNull List<Dcrl.BlockMessage> blocks) {
+    int shared = height + sharedPrefixLength(height, blocks);
+    truncate(shared);
+    for (Dcrl.BlockMessage block : blocks.subList(shared - height, blocks.size())) {
+      append(block);
+    }
+    return shared;
+  }
+
+  /*
+  How many blocks from the start of the given chain are the same as ours
+   */
+  public int sharedPrefixLength(@NotNull List<Dcrl.BlockMessage> chain) {
+    return sharedPrefixLength(0, chain);
+  }
+
+  /*
+  How many of the given blocks, starting at the height, are the same as ours
+   */
+  public int sharedPrefixLength(int height, @NotNull List<Dcrl.BlockMessage> blocks) {
+    int length = 0;
+    while (height + length < size() && length < blocks.size() &&
+        hashAt(height + length).equals(Util.hash(blocks.get(length)))) {
+      length++;
+    }
+    return length;
+  }
+
+  /*
+  Replaces the chain with what's in the store, and writes every change through to it from now on. The stored chain
+  was validated before it was stored, so it's only checked for each block following on from the one before; it's cut
+  short (on disk too) at the first one that doesn't.
+   */
+  public void loadFrom(@NotNull BlockStore store) throws IOException {
+    this.store = null;
+    this.blocks.clear();
+    this.hashes.clear();
+    this.heightByHash.clear();
+    this.publishedTipHeight = -1;
+
+    for (int height = 0; height < store.size(); height++) {
+      Dcrl.BlockMessage block = store.get(height);
+      if (height > 0 && (block.getHeight() != height || !block.getPreviousBlock().equals(tipHash()))) {
+        int brokenAt = height;
+        Log.warn(() -> "Stored block " + brokenAt + " doesn't follow the one before it, dropping it and the rest");
+        store.truncate(height);
+        break;
+      }
+      appendInMemory(block);
+    }
+    this.store = store;
+    this.storedSize = size();
+  }
+
+  /*
+  Makes the store hold exactly our chain: drops whatever it has past the blocks it's known to hold as they are, then
+  writes ours from there. If that fails, the store stays a prefix of the chain and the rest is tried again on the next
+  change, so a block is never written at the wrong height.
+   */
+  private void writeThrough() {
+    if (this.store == null) {
+      return;
+    }
+    try {
+      this.storedSize = Math.min(this.storedSize, this.store.size());
+      this.store.truncate(this.storedSize);
+      while (this.storedSize < size()) {
+        this.store.append(this.blocks.get(this.storedSize));
+        this.storedSize++;
+      }
+    } catch (IOException e) {
+      int behindFrom = this.storedSize;
+      Log.error(e, () -> "Couldn't write the chain to the block store from height " + behindFrom +
+          ", will try again on the next change");
+    }
+  }
+
+  private void appendInMemory(@NotNull Dcrl.BlockMessage block) {
+    ByteString hash = Util.hash(block);
+    this.heightByHash.put(hash, this.blocks.size());
+    this.blocks.add(block);
+    this.hashes.add(hash);
+    this.publishedTipHeight = tipHeight();
+  }
+}
@@ -0,0 +1,60 @@
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Function;
+
+/**
+ * Remembers the hash of each proto instance, so that a certificate or block that's passed around (and through
+ * Util.hash, hashCert or hashBlock) is only ever hashed once.
+ * <p>
+ * Keys are weak and compared by identity: an entry goes away with its proto, and looking one up never has to hash or
+ * compare the proto's contents. Only built messages are cached, since those are immutable; builders are hashed every
+ * time.
+ */
+public final class DigestCache {
+  public static final long MAXIMUM_SIZE = 100_000;
+
+  private static final Cache<Object, ByteString> CACHE = CacheBuilder.newBuilder()
+      .weakKeys()
+      .maximumSize(MAXIMUM_SIZE)
+      .recordStats()
+      .build();
+
+  static {
+    Metrics.counter("dcrl_digest_cache_hits_total", "Hashes answered from the digest cache",
+        () -> CACHE.stats().hitCount());
+    Metrics.counter("dcrl_digest_cache_misses_total", "Hashes that had to be computed",
+        () -> CACHE.stats().missCount());
+    Metrics.gauge("dcrl_digest_cache_size", "Protos whose hash is in the digest cache", CACHE::size);
+  }
+
+  private DigestCache() {
+  }
+
+  /*
+  The cached hash of the message, or else hash(message), which is then cached. Two threads hashing the same new message
+  at once may both compute it, which is harmless.
+   */
+  @NotNull
+  public static <M> ByteString computeIfAbsent(@NotNull M message, @NotNull Function<M, ByteString> hash) {
+    if (!(message instanceof MessageLite)) {
+      return hash.apply(message);
+    }
+    ByteString cached = CACHE.getIfPresent(message);
+    if (cached != null) {
+      return cached;
+    }
+    ByteString computed = hash.apply(message);
+    CACHE.put(message, computed);
+    return computed;
+  }
+
+  @NotNull
+  public static CacheStats stats() {
+    return CACHE.stats();
+  }
+}
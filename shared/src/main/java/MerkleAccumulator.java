@@ -0,0 +1,92 @@
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Revocations waiting to go into a block, with their Merkle root built up as they arrive.
+ * <p>
+ * Each revocation's leaf digest is computed when it's added, and merged into a frontier of perfect subtree roots, one
+ * per set bit of the count (like a binary counter carrying). The tree Util.merkleRoot describes is exactly those
+ * subtrees, largest first, combined from the right, so {@link #root()} only has to hash them together. The one
+ * exception is a tail of 9 leaves (when the count ends in binary 1001), which splits 4 + 5 rather than 8 + 1; that tail
+ * is recomputed from the stored leaf digests, which is at most a dozen hashes.
+ */
+public class MerkleAccumulator {
+  private final List<Dcrl.CertificateRevocation> revocations = new ArrayList<>();
+  private byte[] leaves = new byte[16 * MerkleTree.HASH_BYTES];
+
+  // frontier[k] is the root of the perfect subtree of 2^k leaves for each set bit k of the count
+  private final byte[][] frontier = new byte[Integer.SIZE][];
+
+  public void add(@NotNull Dcrl.CertificateRevocation revocation) {
+    int index = this.revocations.size();
+    byte[] node = MerkleTree.leafDigest(revocation);
+
+    if ((index + 1) * MerkleTree.HASH_BYTES > this.leaves.length) {
+      this.leaves = Arrays.copyOf(this.leaves, 2 * this.leaves.length);
+    }
+    System.arraycopy(node, 0, this.leaves, index * MerkleTree.HASH_BYTES, MerkleTree.HASH_BYTES);
+    this.revocations.add(revocation);
+
+    // carry: the new leaf merges with every subtree of the same size to its left
+    for (int k = 0; (index & (1 << k)) != 0; k++) {
+      byte[] merged = new byte[MerkleTree.HASH_BYTES];
+      MerkleTree.hashPair(this.frontier[k], 0, node, 0, merged, 0);
+      this.frontier[k] = null;
+      node = merged;
+    }
+    this.frontier[Integer.numberOfTrailingZeros(index + 1)] = node;
+  }
+
+  /*
+  The same as Util.merkleRoot(getRevocations())
+   */
+  @NotNull
+  public byte[] root() {
+    int count = this.revocations.size();
+    if (count == 0) {
+      return new byte[0];
+    }
+
+    byte[] root;
+    int lowest;
+    if ((count & 15) == 9) {
+      root = MerkleTree.rootOf(this.leaves, count - 9, 9);
+      lowest = 4;
+    } else {
+      lowest = Integer.numberOfTrailingZeros(count);
+      root = new byte[MerkleTree.HASH_BYTES];
+      if (lowest == 0) {
+        // a single leaf at the bottom is paired with itself
+        MerkleTree.hashPair(this.frontier[0], 0, this.frontier[0], 0, root, 0);
+      } else {
+        System.arraycopy(this.frontier[lowest], 0, root, 0, MerkleTree.HASH_BYTES);
+      }
+      lowest++;
+    }
+
+    for (int k = lowest; k < Integer.SIZE; k++) {
+      if ((count & (1 << k)) != 0) {
+        MerkleTree.hashPair(this.frontier[k], 0, root, 0, root, 0);
+      }
+    }
+    return root;
+  }
+
+  public int size() {
+    return this.revocations.size();
+  }
+
+  @NotNull
+  public List<Dcrl.CertificateRevocation> getRevocations() {
+    return Collections.unmodifiableList(this.revocations);
+  }
+
+  public void clear() {
+    this.revocations.clear();
+    Arrays.fill(this.frontier, null);
+  }
+}
@@ -0,0 +1,265 @@
+import com.google.protobuf.UnsafeByteOperations;
+import org.jetbrains.annotations.NotNull;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the Merkle roots that go in blocks (see Util.merkleRoot for the shape of the tree), without recursion or
+ * intermediate lists.
+ * <p>
+ * Each revocation's leaf digest is SHA-256 of Util.hash(revocation), and they're all kept in one flat array of
+ * {@link #HASH_BYTES}-byte digests. The tree is a spine: a run of perfect subtrees of decreasing size down the left,
+ * ending in one or two leaves. Each perfect subtree is reduced level by level, then the spine is folded back up from
+ * the bottom. The same walk down the spine gives inclusion proofs for single leaves. Leaf hashing, and any level with
+ * at least {@link #PARALLEL_THRESHOLD} hashes to do, runs in parallel on the common fork-join pool.
+ */
+public final class MerkleTree {
+  public static final int HASH_BYTES = 32;
+  public static final int PARALLEL_THRESHOLD = 1024;
+
+  private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 isn't available", e);
+    }
+  });
+
+  private MerkleTree() {
+  }
+
+  /*
+  The same root as Util.merkleRoot always gave: empty for no revocations
+   */
+  @NotNull
+  public static byte[] root(@NotNull List<Dcrl.CertificateRevocation> revocations) {
+    return rootOfLeaves(leafDigests(revocations), revocations.size());
+  }
+
+  /*
+  The leaf digest of every revocation, one after the other
+   */
+  @NotNull
+  public static byte[] leafDigests(@NotNull List<Dcrl.CertificateRevocation> revocations) {
+    byte[] leaves = new byte[revocations.size() * HASH_BYTES];
+    forEach(revocations.size(), i -> {
+      Util.hash(revocations.get(i)).copyTo(leaves, i * HASH_BYTES);
+      hashRange(leaves, i * HASH_BYTES, HASH_BYTES, leaves, i * HASH_BYTES);
+    });
+    return leaves;
+  }
+
+  /*
+  The root of the first count leaf digests in leaves
+   */
+  @NotNull
+  public static byte[] rootOfLeaves(@NotNull byte[] leaves, int count) {
+    if (count == 0) {
+      return new byte[0];
+    }
+    return rootOf(leaves, 0, count);
+  }
+
+  @NotNull
+  public static byte[] leafDigest(@NotNull Dcrl.CertificateRevocation revocation) {
+    byte[] leaf = new byte[HASH_BYTES];
+    Util.hash(revocation).copyTo(leaf, 0);
+    hashRange(leaf, 0, HASH_BYTES, leaf, 0);
+    return leaf;
+  }
+
+  /*
+  The inclusion proof for leaf index of the tree over the first count leaf digests: the sibling of every node on the
+  path from the leaf up to the root, bottom first. A leaf that's paired with itself is its own sibling.
+   */
+  @NotNull
+  public static List<Dcrl.MerkleProofStep> proof(@NotNull byte[] leaves, int count, int index) {
+    if (index < 0 || index >= count) {
+      throw new IndexOutOfBoundsException("No leaf " + index + " in a tree of " + count);
+    }
+    // collected from the root down
+    List<Dcrl.MerkleProofStep> steps = new ArrayList<>();
+    int start = 0;
+    int size = count;
+    while (size > 2) {
+      int left = split(size);
+      if (index < start + left) {
+        steps.add(step(rootOf(leaves, start + left, size - left), false));
+        pathInPerfectTree(leaves, start, left, index, steps);
+        size = 0;
+      } else {
+        steps.add(step(perfectRoot(leaves, start, left), true));
+        start += left;
+        size -= left;
+      }
+    }
+    if (size == 2) {
+      steps.add(index == start ? step(leaf(leaves, start + 1), false) : step(leaf(leaves, start), true));
+    } else if (size == 1) {
+      steps.add(step(leaf(leaves, start), false));
+    }
+    Collections.reverse(steps);
+    return steps;
+  }
+
+  /*
+  Whether following the proof up from the leaf digest ends at the root
+   */
+  public static boolean verify(@NotNull byte[] leaf, @NotNull List<Dcrl.MerkleProofStep> proof, @NotNull byte[] root) {
+    if (leaf.length != HASH_BYTES || root.length != HASH_BYTES || proof.isEmpty()) {
+      return false;
+    }
+    byte[] pair = new byte[2 * HASH_BYTES];
+    byte[] node = leaf.clone();
+    for (Dcrl.MerkleProofStep step : proof) {
+      if (step.getSibling().size() != HASH_BYTES) {
+        return false;
+      }
+      step.getSibling().copyTo(pair, step.getSiblingOnLeft() ? 0 : HASH_BYTES);
+      System.arraycopy(node, 0, pair, step.getSiblingOnLeft() ? HASH_BYTES : 0, HASH_BYTES);
+      hashRange(pair, 0, 2 * HASH_BYTES, node, 0);
+    }
+    return Arrays.equals(node, root);
+  }
+
+  private static void pathInPerfectTree(@NotNull byte[] leaves, int start, int size, int index,
+                                        @NotNull List<Dcrl.MerkleProofStep> steps) {
+    while (size > 1) {
+      int half = size / 2;
+      if (index < start + half) {
+        steps.add(step(perfectRoot(leaves, start + half, half), false));
+      } else {
+        steps.add(step(perfectRoot(leaves, start, half), true));
+        start += half;
+      }
+      size = half;
+    }
+  }
+
+  @NotNull
+  private static Dcrl.MerkleProofStep step(@NotNull byte[] sibling, boolean siblingOnLeft) {
+    return Dcrl.MerkleProofStep.newBuilder()
+        .setSibling(UnsafeByteOperations.unsafeWrap(sibling, 0, HASH_BYTES))
+        .setSiblingOnLeft(siblingOnLeft)
+        .build();
+  }
+
+  @NotNull
+  private static byte[] leaf(@NotNull byte[] leaves, int index) {
+    return Arrays.copyOfRange(leaves, index * HASH_BYTES, (index + 1) * HASH_BYTES);
+  }
+
+  /*
+  The root of the (non-empty) tree over count leaves starting at leaf start
+   */
+  @NotNull
+  static byte[] rootOf(@NotNull byte[] leaves, int start, int count) {
+    // the perfect subtrees down the left of the spine, as [start, size) pairs
+    int[] spine = new int[2 * Integer.SIZE];
+    int subtrees = 0;
+    int remaining = count;
+    while (remaining > 2) {
+      int size = split(remaining);
+      spine[2 * subtrees] = start;
+      spine[2 * subtrees + 1] = size;
+      subtrees++;
+      start += size;
+      remaining -= size;
+    }
+
+    // the bottom of the spine: a pair of leaves, or one leaf paired with itself
+    byte[] root = new byte[HASH_BYTES];
+    hashPair(leaves, start * HASH_BYTES, leaves, (start + remaining - 1) * HASH_BYTES, root, 0);
+
+    byte[] pair = new byte[2 * HASH_BYTES];
+    for (int s = subtrees - 1; s >= 0; s--) {
+      System.arraycopy(perfectRoot(leaves, spine[2 * s], spine[2 * s + 1]), 0, pair, 0, HASH_BYTES);
+      System.arraycopy(root, 0, pair, HASH_BYTES, HASH_BYTES);
+      hashRange(pair, 0, 2 * HASH_BYTES, root, 0);
+    }
+    return root;
+  }
+
+  /*
+  How many of n (more than 2) leaves go in the left subtree. The original rule was 2^(ceil(sqrt(n)) - 1), which is the
+  largest power of two below n for every n it worked for (up to 25) except 9, where it's 4. Past 25 it gave no root at
+  all: from 32 to 36 the left subtree was all 32 leaves, which split the same way forever, and for every other n it was
+  more leaves than there were, so taking them threw an IndexOutOfBoundsException. This keeps the one exception and
+  uses the largest power of two everywhere else, so roots over more than 25 leaves are new. Every left subtree is a
+  power of two, so it's always a perfect tree.
+   */
+  static int split(int n) {
+    return n == 9 ? 4 : Integer.highestOneBit(n - 1);
+  }
+
+  /*
+  The root of the perfect tree over size (a power of two) leaves starting at leaf start. The result may be longer than
+  a hash; the root is at the start of it.
+   */
+  @NotNull
+  private static byte[] perfectRoot(@NotNull byte[] leaves, int start, int size) {
+    if (size == 1) {
+      return leaf(leaves, start);
+    }
+    byte[] from = leaves;
+    int fromStart = start;
+    byte[] to = new byte[size / 2 * HASH_BYTES];
+    byte[] spare = size >= 4 ? new byte[size / 4 * HASH_BYTES] : null;
+    for (int level = size / 2; level >= 1; level /= 2) {
+      byte[] source = from;
+      byte[] target = to;
+      int sourceStart = fromStart;
+      forEach(level, i -> hashPair(
+          source, (sourceStart + 2 * i) * HASH_BYTES,
+          source, (sourceStart + 2 * i + 1) * HASH_BYTES,
+          target, i * HASH_BYTES));
+      // the level just written is read by the next one, which is written over whichever buffer is free
+      byte[] free = from == leaves ? spare : from;
+      from = to;
+      fromStart = 0;
+      to = free;
+    }
+    return from;
+  }
+
+  private static void forEach(int count, @NotNull IntConsumer action) {
+    if (count >= PARALLEL_THRESHOLD) {
+      IntStream.range(0, count).parallel().forEach(action);
+    } else {
+      for (int i = 0; i < count; i++) {
+        action.accept(i);
+      }
+    }
+  }
+
+  static void hashPair(@NotNull byte[] left, int leftOffset,
+                       @NotNull byte[] right, int rightOffset,
+                       @NotNull byte[] out, int outOffset) {
+    MessageDigest sha256 = SHA_256.get();
+    sha256.update(left, leftOffset, HASH_BYTES);
+    sha256.update(right, rightOffset, HASH_BYTES);
+    finish(sha256, out, outOffset);
+  }
+
+  private static void hashRange(@NotNull byte[] input, int offset, int length, @NotNull byte[] out, int outOffset) {
+    MessageDigest sha256 = SHA_256.get();
+    sha256.update(input, offset, length);
+    finish(sha256, out, outOffset);
+  }
+
+  private static void finish(@NotNull MessageDigest sha256, @NotNull byte[] out, int outOffset) {
+    try {
+      sha256.digest(out, outOffset, HASH_BYTES);
+    } catch (DigestException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
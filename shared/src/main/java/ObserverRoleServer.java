@@ -1,3 +1,4 @@
+import com.google.protobuf.ByteString;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -18,9 +19,13 @@ public class ObserverRoleServer extends ProtocolServer {
    */
 
   List<NetworkIdentity> preferenceList;
-  List<Dcrl.BlockMessage> blockchain;
+  final ChainIndex blockchain;
+  // keeps the revoked list in step with this.blockchain
+  final RevokedSetCheckpoints revokedCheckpoints;
+  // catches this.blockchain up to other servers'
+  final BlockSync blockSync;
   long timestamp;
-  boolean waitingForBlockchainUpdate = false;
+  volatile boolean waitingForBlockchainUpdate = false;
 
 
   public ObserverRoleServer(@NotNull Map<NetworkIdentity, SocketTuple> otherServers,
@@ -28,8 +33,13 @@ public class ObserverRoleServer extends ProtocolServer {
                             @NotNull List<NetworkIdentity> preferenceList) {
     super(otherServers, trustStore);
     this.preferenceList = preferenceList;
-    this.blockchain = new ArrayList<>();
+    this.blockchain = new ChainIndex();
+    this.revokedCheckpoints = new RevokedSetCheckpoints(getCurrentRevokedList());
+    this.blockSync = new BlockSync(new SyncHost());
     this.timestamp = 0;
+    Metrics.gauge("dcrl_chain_height", "Height of the newest block in the chain", this.blockchain::publishedTipHeight);
+    Metrics.gauge("dcrl_revoked_checkpoints", "Revoked list checkpoints kept along the chain",
+        this.revokedCheckpoints::publishedCheckpointCount);
   }
 
   public ObserverRoleServer(@NotNull Map<NetworkIdentity, SocketTuple> otherServers, @NotNull File trustStore) {
@@ -47,91 +57,139 @@ public class ObserverRoleServer extends ProtocolServer {
   }
 
   /*
-  Requests a copy of the blockchain from a specific server.
+  Syncs to a specific server's chain: its headers come from it, and the blocks from every server we know (see
+  BlockSync). Call it from the state machine.
    */
   public void requestBlockchain(NetworkIdentity server) {
-    // build the request
     waitingForBlockchainUpdate = true;
-    System.out.println("Sending request to " + server.getIpAddress() + ":" + server.getPortNumber());
-    Dcrl.DCRLMessage request = Dcrl.DCRLMessage.newBuilder()
-        .setUnsignedMessage(
-            Dcrl.UnsignedMessage.newBuilder()
-                .setBlockchainRequest(
-                    Dcrl.BlockchainRequest.getDefaultInstance()
-                )
-        )
-        .build();
-
-    sendMessageToIdentity(server, request);
+    this.blockSync.start(server, this.getOtherServers().keySet());
   }
 
   /*
   Requests a copy of the Blockchain from the first NetworkIdentity in the preference list, if there is one.
   Defaults to a random server if there are no preferences.
+  Safe to call from any thread: the request is made from the state machine.
   */
   public void requestBlockchain() {
-    // send the request to the first preference, if there is one
-    if (this.preferenceList.size() > 0) {
-      requestBlockchain(this.preferenceList.get(0));
-    } else {
-      for (NetworkIdentity nt : this.getOtherServers().keySet()) {
-        requestBlockchain(nt);
-        break;
+    waitingForBlockchainUpdate = true;
+    runOnStateMachine(() -> {
+      // send the request to the first preference, if there is one
+      if (this.preferenceList.size() > 0) {
+        requestBlockchain(this.preferenceList.get(0));
+      } else {
+        for (NetworkIdentity nt : this.getOtherServers().keySet()) {
+          requestBlockchain(nt);
+          break;
+        }
       }
-    }
+    });
   }
 
   /*
-  Verifies the signature of the message
-  Updates the blockchain and timestamp if the blockchain is not empty
+  Drops it: chains are only ever synced through BlockSync, so we never send BlockchainRequests and every whole chain
+  that arrives is one we didn't ask for. Participants still answer BlockchainRequests.
    */
   @Nullable
   @Override
   public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
                                         @NotNull Dcrl.BlockchainResponse message,
                                         @NotNull Dcrl.Certificate from) {
-    List<Dcrl.BlockMessage> response = message.getBlocksList();
-
-    System.out.println("got a message back");
+    Log.debug(() -> "Dropped a blockchain we didn't ask for from " + identity);
+    return null;
+  }
 
-    // error checking before updating this.blockchain
-    if (response.isEmpty()) {
-      waitingForBlockchainUpdate = false;
-      return ProtocolServerUtil.buildErrorMessage("Empty blockchain.");
+  /*
+  Bodies for a sync in progress. Ranges are only ever asked for by BlockSync, so any other reply is dropped.
+   */
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
+                                        @NotNull Dcrl.BlockRangeResponse message,
+                                        @NotNull Dcrl.Certificate from) {
+    if (this.blockSync.isWaitingOn(identity)) {
+      this.blockSync.handleBodies(identity, message);
     } else {
-      this.blockchain = response;
-      processBlockchain();
-      this.timestamp = (new Date()).getTime();
-      waitingForBlockchainUpdate = false;
-      return null;
+      Log.debug(() -> "Dropped blocks we didn't ask for from " + identity);
+    }
+    return null;
+  }
+
+  /*
+  Headers for a sync in progress
+   */
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
+                                        @NotNull Dcrl.HeadersResponse message,
+                                        @NotNull Dcrl.Certificate from) {
+    return this.blockSync.handleHeaders(identity, message);
+  }
+
+  /*
+  Where a sync in progress should start from
+   */
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
+                                        @NotNull Dcrl.ForkLocatorResponse message,
+                                        @NotNull Dcrl.Certificate from) {
+    return this.blockSync.handleLocator(identity, message);
+  }
+
+  void finishBlockchainUpdate() {
+    this.timestamp = (new Date()).getTime();
+    waitingForBlockchainUpdate = false;
+  }
+
+  /*
+  Whether the block could go at the height in our chain: it follows on from the block before it, or at 0, it's the
+  genesis block
+   */
+  protected boolean followsOn(int height, @NotNull Dcrl.BlockMessage block) {
+    if (height == 0) {
+      return Util.hash(block).equals(Constants.GENESIS_BLOCK_HASH);
     }
+    return height <= this.blockchain.size() && block.getPreviousBlock().equals(this.blockchain.hashAt(height - 1));
+  }
+
+  @NotNull
+  protected BlockchainVerifier verifier() {
+    return new BlockchainVerifier(
+        getTrustStore(),
+        ((ByteString bytes) -> getCurrentRevokedList().contains(bytes))
+    );
   }
 
   /**
-   * Processes the blockchain to generate the current state of revoked CRLs. This function assumes that the blockchain
-   * list is in order.
+   * Processes the blockchain to generate the current state of revoked CRLs. Only the blocks since the newest revoked
+   * list checkpoint that's still on the chain are replayed (see RevokedSetCheckpoints), so call this after every change
+   * to the chain.
    */
   protected void processBlockchain() {
+    this.revokedCheckpoints.catchUp(this.blockchain);
+  }
 
-    this.getCurrentRevokedList().clear();
+  @Override
+  protected void tick() {
+    this.blockSync.tick();
+  }
 
-    for (Dcrl.BlockMessage block : this.blockchain) {
-      for (Dcrl.CertificateRevocation revocation : block.getCertificateRevocationsList()) {
-        this.getCurrentRevokedList().put(Util.hashCert(revocation.getCertificate()), revocation.getCertificate());
-      }
-    }
+  @Override
+  protected void peerDisconnected(@NotNull NetworkIdentity identity) {
+    this.blockSync.dropPeer(identity, "disconnected");
   }
 
   /*
   Verifies the signature of the message
-  Prints the Error message
+  Prints the Error message, and stops counting on the sender for a sync in progress
    */
   @Nullable
   @Override
   public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
                                         @NotNull Dcrl.ErrorMessage message,
                                         @Nullable Dcrl.Certificate from) {
-    System.out.println(message.getError());
+    Log.info(() -> "Error from " + identity + ": " + message.getError());
+    this.blockSync.dropPeer(identity, "sent an error");
     return null;
   }
 
@@ -151,7 +209,6 @@ public class ObserverRoleServer extends ProtocolServer {
   @Nullable
   @Override
   public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity, @NotNull Dcrl.BlockchainRequest message) {
-    System.out.println("wtf");
     return ProtocolServerUtil.buildErrorMessage(
         String.format("Message type %s not supported.", message.getClass().toString())
     );
@@ -194,4 +251,91 @@ public class ObserverRoleServer extends ProtocolServer {
         String.format("Message type %s not supported.", message.getClass().toString())
     );
   }
+
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity, @NotNull Dcrl.BlockRangeRequest message) {
+    return ProtocolServerUtil.buildErrorMessage(
+        String.format("Message type %s not supported.", message.getClass().toString())
+    );
+  }
+
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity, @NotNull Dcrl.HeadersRequest message) {
+    return ProtocolServerUtil.buildErrorMessage(
+        String.format("Message type %s not supported.", message.getClass().toString())
+    );
+  }
+
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity, @NotNull Dcrl.ForkLocatorRequest message) {
+    return ProtocolServerUtil.buildErrorMessage(
+        String.format("Message type %s not supported.", message.getClass().toString())
+    );
+  }
+
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
+                                        @NotNull Dcrl.RevocationProofRequest message) {
+    return ProtocolServerUtil.buildErrorMessage(
+        String.format("Message type %s not supported.", message.getClass().toString())
+    );
+  }
+
+  /*
+  Drops it: no server sends RevocationProofRequests, so every proof is one we didn't ask for. The revoked list only
+  ever comes from blocks in our own chain (so checkpoints can roll it back), and a proof is only worth the header it's
+  checked against, which would have to be in our chain too, at which point its revocations are in the list already.
+  Participants still answer RevocationProofRequests, for clients that keep only headers.
+   */
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
+                                        @NotNull Dcrl.RevocationProofResponse message,
+                                        @NotNull Dcrl.Certificate from) {
+    Log.debug(() -> "Dropped a revocation proof we didn't ask for from " + identity);
+    return null;
+  }
+
+  /*
+  This server's side of a sync: our chain, checked against our trust store and revoked list
+   */
+  private final class SyncHost implements BlockSync.Host {
+    @NotNull
+    @Override
+    public ChainIndex chain() {
+      return blockchain;
+    }
+
+    @Override
+    public boolean followsOn(int height, @NotNull Dcrl.BlockMessage block) {
+      return ObserverRoleServer.this.followsOn(height, block);
+    }
+
+    @NotNull
+    @Override
+    public BlockchainVerifier.Result verify(@NotNull List<Dcrl.BlockMessage> headers,
+                                            int fromHeight,
+                                            @NotNull ByteString previousHash) {
+      return fromHeight == 0 ? verifier().verify(headers) : verifier().verify(headers, fromHeight, previousHash);
+    }
+
+    @Override
+    public void send(@NotNull NetworkIdentity peer, @NotNull Dcrl.DCRLMessage message) {
+      sendMessageToIdentity(peer, message);
+    }
+
+    @Override
+    public void chainChanged() {
+      processBlockchain();
+    }
+
+    @Override
+    public void finished() {
+      finishBlockchainUpdate();
+    }
+  }
 }
@@ -0,0 +1,163 @@
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Blocks that arrived before their parent, kept until the parent is in the chain, keyed by the hash of the parent they
+ * name.
+ * <p>
+ * The pool holds at most {@link #MAX_ORPHANS} blocks and {@link #MAX_BYTES} of them, dropping the oldest to make
+ * room, and forgets any block after {@link #EXPIRY_MILLIS}. It also remembers which heights have been asked for
+ * recently, so a gap is only asked for once while the answer is on its way.
+ * <p>
+ * Only the state machine uses it, apart from {@link #publishedSize}, which any thread can read.
+ */
+public class OrphanPool {
+  public static final int MAX_ORPHANS = 256;
+  public static final long MAX_BYTES = 16 << 20;
+  public static final long EXPIRY_MILLIS = 60_000;
+  public static final long REQUEST_RETRY_MILLIS = 5_000;
+
+  /**
+   * A block waiting for its parent, and what's needed to pass it along once it's added
+   */
+  public static final class Orphan {
+    @NotNull
+    public final Dcrl.BlockMessage block;
+    @NotNull
+    public final ByteString hash;
+    @NotNull
+    public final NetworkIdentity from;
+    // the signed message it came in, if it was gossiped, for relaying it as it was signed
+    @Nullable
+    public final Dcrl.DCRLMessage signed;
+    final long receivedAt;
+    final int bytes;
+
+    public Orphan(@NotNull Dcrl.BlockMessage block,
+                  @NotNull ByteString hash,
+                  @NotNull NetworkIdentity from,
+                  @Nullable Dcrl.DCRLMessage signed,
+                  long receivedAt) {
+      this.block = block;
+      this.hash = hash;
+      this.from = from;
+      this.signed = signed;
+      this.receivedAt = receivedAt;
+      this.bytes = block.getSerializedSize();
+    }
+  }
+
+  // oldest first
+  private final LinkedHashMap<ByteString, Orphan> byHash = new LinkedHashMap<>();
+  private final Map<ByteString, List<Orphan>> byParent = new HashMap<>();
+  private final Map<Long, Long> requestedAt = new HashMap<>();
+  private long bytes = 0;
+  // size() as of the last change, for other threads (like the metrics endpoint) to read
+  private volatile int publishedSize = 0;
+
+  public void add(@NotNull Orphan orphan) {
+    expire(orphan.receivedAt);
+    if (this.byHash.containsKey(orphan.hash)) {
+      return;
+    }
+    while (!this.byHash.isEmpty() &&
+        (this.byHash.size() >= MAX_ORPHANS || this.bytes + orphan.bytes > MAX_BYTES)) {
+      remove(this.byHash.values().iterator().next());
+    }
+    this.byHash.put(orphan.hash, orphan);
+    this.byParent.computeIfAbsent(orphan.block.getPreviousBlock(), parent -> new ArrayList<>(1)).add(orphan);
+    this.bytes += orphan.bytes;
+    this.publishedSize = this.byHash.size();
+  }
+
+  /*
+  Takes every orphan that names this block as its parent out of the pool, oldest first
+   */
+  @NotNull
+  public List<Orphan> takeChildrenOf(@NotNull ByteString parentHash) {
+    List<Orphan> children = this.byParent.remove(parentHash);
+    if (children == null) {
+      return Collections.emptyList();
+    }
+    for (Orphan child : children) {
+      this.byHash.remove(child.hash);
+      this.bytes -= child.bytes;
+      this.requestedAt.remove(child.block.getHeight());
+    }
+    this.publishedSize = this.byHash.size();
+    return children;
+  }
+
+  /*
+  Whether the block at the height should be asked for: nothing at that height is waiting here, and it wasn't asked for
+  in the last REQUEST_RETRY_MILLIS. Saying yes counts as asking.
+   */
+  public boolean shouldRequest(long height, long now) {
+    for (Orphan orphan : this.byHash.values()) {
+      if (orphan.block.getHeight() == height) {
+        return false;
+      }
+    }
+    Long askedAt = this.requestedAt.get(height);
+    if (askedAt != null && now - askedAt < REQUEST_RETRY_MILLIS) {
+      return false;
+    }
+    this.requestedAt.put(height, now);
+    return true;
+  }
+
+  public int size() {
+    return this.byHash.size();
+  }
+
+  /*
+  How many blocks were waiting as of the last change, which unlike size() any thread can read
+   */
+  public int publishedSize() {
+    return this.publishedSize;
+  }
+
+  public long bytes() {
+    return this.bytes;
+  }
+
+  private void expire(long now) {
+    Iterator<Orphan> oldestFirst = this.byHash.values().iterator();
+    while (oldestFirst.hasNext()) {
+      Orphan oldest = oldestFirst.next();
+      if (now - oldest.receivedAt < EXPIRY_MILLIS) {
+        break;
+      }
+      oldestFirst.remove();
+      forget(oldest);
+    }
+    this.requestedAt.values().removeIf(askedAt -> now - askedAt >= REQUEST_RETRY_MILLIS);
+    this.publishedSize = this.byHash.size();
+  }
+
+  private void remove(@NotNull Orphan orphan) {
+    this.byHash.remove(orphan.hash);
+    forget(orphan);
+  }
+
+  // everything but the byHash entry
+  private void forget(@NotNull Orphan orphan) {
+    this.bytes -= orphan.bytes;
+    List<Orphan> siblings = this.byParent.get(orphan.block.getPreviousBlock());
+    if (siblings != null) {
+      siblings.remove(orphan);
+      if (siblings.isEmpty()) {
+        this.byParent.remove(orphan.block.getPreviousBlock());
+      }
+    }
+  }
+}
@@ -5,25 +5,50 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 
 abstract public class ParticipantJavaAbstract extends ObserverRoleServer {
+  private static final int SEEN_BLOCKS_CAPACITY = 4096;
+  // the most blocks, and bytes of them, sent in reply to one BlockRangeRequest
+  public static final int MAX_RANGE_BLOCKS = 512;
+  public static final int MAX_RANGE_BYTES = 1 << 20;
+  // and the most headers sent in reply to one HeadersRequest
+  public static final int MAX_HEADERS = 2048;
+  // the most locator hashes looked at from one ForkLocatorRequest (an honest one has about 10 + log2(height))
+  public static final int MAX_LOCATOR_HASHES = 64;
+  // how far ahead of our newest block a block can be and still wait in the orphan pool while the ones between are
+  // asked for one by one; any further and we sync instead
+  public static final int MAX_ORPHAN_GAP = 32;
+
   protected final Dcrl.Certificate selfCertificate;
   protected final byte[] selfPrivateKey;
   protected final List<NetworkIdentity> otherParticipantsAndAuthorities;
 
-  protected List<Dcrl.CertificateRevocation> revocationsToProcess;
-  // inherits this.blockchain
-  protected ByteString lastValidatedHash;
-  protected int lastValidatedHeight;
+  // revocations for the next block, with its merkle root kept up to date as they come in
+  protected MerkleAccumulator revocationsToProcess;
+  // inherits this.blockchain, whose tip is the last block we validated
 
   // for block creation
   protected int revocationsPerBlock;
 
+  // for block propagation: how many peers to send each new block to (0 floods it to all of them), and the hashes of
+  // the blocks we've already seen so a gossiped block is only handled and relayed once
+  protected int gossipFanout;
+  protected final Set<ByteString> seenBlocks;
+  // blocks that arrived before their parent
+  protected final OrphanPool orphans;
+
+  // where the chain is kept across restarts, if anywhere (see openBlockStore)
+  @Nullable
+  protected BlockStore blockStore;
+
   public ParticipantJavaAbstract(@NotNull Map<NetworkIdentity, SocketTuple> otherServers,
                                  @NotNull File trustStore,
                                  @NotNull File selfCertificate,
@@ -32,17 +57,53 @@ abstract public class ParticipantJavaAbstract extends ObserverRoleServer {
     this.selfCertificate = Dcrl.Certificate.parseFrom(Files.readAllBytes(selfCertificate.toPath()));
     this.selfPrivateKey = Files.readAllBytes(selfPrivateKey.toPath());
 
-    this.revocationsToProcess = new ArrayList<Dcrl.CertificateRevocation>();
-    this.blockchain = new ArrayList<Dcrl.BlockMessage>();
-    this.blockchain.add(Constants.GENESIS_BLOCK);
-    this.lastValidatedHash = Constants.GENESIS_BLOCK_HASH;
-    this.lastValidatedHeight = Constants.GENESIS_BLOCK_HEIGHT;
+    this.revocationsToProcess = new MerkleAccumulator();
+    this.blockchain.append(Constants.GENESIS_BLOCK);
 
     this.revocationsPerBlock = 1;
 
-    this.otherParticipantsAndAuthorities = new ArrayList<>(otherServers.keySet());
+    this.gossipFanout = 0;
+    this.seenBlocks = Collections.newSetFromMap(new LinkedHashMap<ByteString, Boolean>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteString, Boolean> eldest) {
+        return size() > SEEN_BLOCKS_CAPACITY;
+      }
+    });
+
+    this.orphans = new OrphanPool();
+    Metrics.gauge("dcrl_orphan_blocks", "Blocks waiting in the orphan pool for their parent",
+        this.orphans::publishedSize);
+
+    // read from the web interface's threads while the state machine adds to it
+    this.otherParticipantsAndAuthorities = new CopyOnWriteArrayList<>(otherServers.keySet());
+  }
+
+
+  public void setGossipFanout(int gossipFanout) {
+    this.gossipFanout = gossipFanout;
   }
 
+  /**
+   * Keeps the chain in a BlockStore in the directory from now on, starting from whatever is already there. Call this
+   * before the server starts handling messages.
+   * <p>
+   * The stored chain is trusted as it is (it was validated before it was stored) apart from checking that it starts
+   * at our genesis block and that each block links to the one before (see ChainIndex.loadFrom).
+   */
+  public void openBlockStore(@NotNull File directory) throws IOException {
+    BlockStore store = new BlockStore(directory);
+    if (store.size() == 0) {
+      store.append(Constants.GENESIS_BLOCK);
+    } else if (!Util.hash(store.get(0)).equals(Constants.GENESIS_BLOCK_HASH)) {
+      store.close();
+      throw new IOException("The block store in " + directory + " doesn't start with this network's genesis block");
+    }
+
+    this.blockStore = store;
+    this.blockchain.loadFrom(store);
+    processBlockchain();
+    Log.info(() -> "Loaded " + this.blockchain.size() + " blocks from " + directory);
+  }
 
   /**
    * need to make a block?
@@ -59,11 +120,10 @@ abstract public class ParticipantJavaAbstract extends ObserverRoleServer {
     if (!CryptoKt.verifyVerbose(from,
         errorConsumer,
         ((ByteString bytes) -> getTrustStore().get(bytes)),
-        ((ByteString bytes) -> getCurrentRevokedList().containsKey(bytes)),
+        ((ByteString bytes) -> getCurrentRevokedList().contains(bytes)),
         Dcrl.CertificateUsage.AUTHORITY
     )) {
-      if (errorCollector.toString().contains("trusted"))
-        getTrustStore().forEach((hash, cert) -> System.out.println(hash));
+      Log.debug(() -> "Rejected a revocation from " + from.getSubject() + ": " + errorCollector);
       return ProtocolServerUtil.buildErrorMessage("Bad revocation for certificate for " + from.getSubject() + "! " + errorCollector.toString(), selfCertificate, selfPrivateKey);
     }
 
@@ -72,24 +132,21 @@ abstract public class ParticipantJavaAbstract extends ObserverRoleServer {
     }
 
     this.revocationsToProcess.add(message);
-    System.out.println("Added revocation, now storing " + this.revocationsToProcess.size());
+    Log.debug(() -> "Added revocation, now storing " + this.revocationsToProcess.size());
 
     if (this.revocationsToProcess.size() == this.revocationsPerBlock) {
 
       Dcrl.BlockMessage blockMessage = Dcrl.BlockMessage.newBuilder()
           .setCertificate(this.selfCertificate)
-          .setHeight((int) this.lastValidatedHeight + 1)
-          .setPreviousBlock(this.lastValidatedHash)
+          .setHeight(this.blockchain.size())
+          .setPreviousBlock(this.blockchain.tipHash())
           .setTimestamp(new Date().getTime())
-          .setMerkleRoot(ByteString.copyFrom(Util.merkleRoot(this.revocationsToProcess)))
-          .addAllCertificateRevocations(this.revocationsToProcess)
+          .setMerkleRoot(ByteString.copyFrom(this.revocationsToProcess.root()))
+          .addAllCertificateRevocations(this.revocationsToProcess.getRevocations())
           .build();
 
-      this.blockchain.add(blockMessage);
-      for (Dcrl.CertificateRevocation revocation :
-          this.revocationsToProcess) {
-        this.getCurrentRevokedList().put(Util.hashCert(revocation.getCertificate()), revocation.getCertificate());
-      }
+      this.blockchain.append(blockMessage);
+      processBlockchain();
 
       Dcrl.DCRLMessage messageToSend = Dcrl.DCRLMessage.newBuilder()
           .setSignedMessage(
@@ -100,13 +157,10 @@ abstract public class ParticipantJavaAbstract extends ObserverRoleServer {
           )
           .build();
 
-      this.lastValidatedHeight += 1;
-      this.lastValidatedHash = Util.hash(blockMessage);
+      this.seenBlocks.add(this.blockchain.tipHash());
 
-      // need to flood messageToSend
-      for (NetworkIdentity server : this.otherParticipantsAndAuthorities) {
-        sendMessageToIdentity(server, messageToSend);
-      }
+      // need to flood (or gossip) messageToSend
+      broadcast(this.otherParticipantsAndAuthorities, messageToSend, this.gossipFanout, null);
       this.revocationsToProcess.clear();
     }
     return null;
@@ -117,7 +171,8 @@ abstract public class ParticipantJavaAbstract extends ObserverRoleServer {
    * The incoming message has had its signature verified.
    * 1. Validate the Certificate (same certificate as the one in the SignedMessage)
    * 2. Check the block's height. If this Block's height is greater than 1 plus the height of the
-   * Participant's last validated Block, then the Participant will need to perform Fork Resolution.
+   * Participant's last validated Block, it waits in the orphan pool while the blocks between are asked for (or, if
+   * that's too many, the Participant syncs to the sender's chain).
    * 3. Compare the previous block's hash with the prev hash reported in this block.
    * 4. Verify the signature of all CertificateRevocations in the block.
    * 5. accept it if we get to this step.
@@ -138,55 +193,157 @@ abstract public class ParticipantJavaAbstract extends ObserverRoleServer {
           this.selfPrivateKey);
     }
 
-    System.out.println("Heights:");
-    System.out.println(message.getHeight());
-    System.out.println(this.lastValidatedHeight);
-
-    // check height
-    if (message.getHeight() <= this.lastValidatedHeight) {
-      // old block or block at same height, drop, send signed error
-      return ProtocolServerUtil.buildErrorMessage(
-          "You sent a stale block.",
-          this.selfCertificate,
-          this.selfPrivateKey);
-    } else if (message.getHeight() > this.lastValidatedHeight + 1) {
-      // missing blocks. need to get and verify new blockchain (ez fork resolution)
-      return this.requestNewBlockchain(identity);
+    Log.debug(() -> "Got block " + message.getHeight() + " from " + identity + ", at " + this.blockchain.tipHeight());
+
+    // check height. a block that reached us through more than one peer is only handled once: it's only marked seen
+    // once it's been added, so a copy that fails the checks above can't stop the real one. a block waiting in the
+    // orphan pool isn't seen yet (the pool ignores copies), so if it's dropped from there it can be asked for again
+    ByteString blockHash = Util.hash(message);
+    if (this.seenBlocks.contains(blockHash) || message.getHeight() <= this.blockchain.tipHeight()) {
+      // a copy, or a block that lost to the one we have at its height: nothing wrong with the sender, so just drop it
+      // (an error would cost a signature, and makes the sender stop counting on us for a sync)
+      return null;
+    } else if (message.getHeight() > this.blockchain.tipHeight() + 1) {
+      // missing blocks. hold on to this one until they're in
+      holdOrphan(identity, message, blockHash, getMessageBeingHandled());
+      return null;
     }
 
-    // now we have message.getHeight() == this.lastValidatedHeight + 1
+    // now we have message.getHeight() == this.blockchain.tipHeight() + 1
 
-    if (this.lastValidatedHash != message.getPreviousBlock()) {
-      // our prev block is the wrong block. need to request new blockchain
-      return this.requestNewBlockchain(identity);
+    if (!this.blockchain.tipHash().equals(message.getPreviousBlock())) {
+      // our prev block is the wrong block. sync to the sender's chain from where it forked from ours
+      this.blockSync.start(identity, this.otherParticipantsAndAuthorities);
+      return null;
     }
 
     // we can't validate the signatures of the CertificateRevocations because there are no signatures :)
 
-    this.lastValidatedHeight = (int) message.getHeight();
-    this.lastValidatedHash = Util.hash(message);
-    this.blockchain.add(message);
-
+    extendChain(identity, message, getMessageBeingHandled());
     return null;
   }
 
   /**
-   * drop message bc we don't use it.
+   * A block we asked for to fill a gap before an orphan: add it if it's next, otherwise it's an orphan too
    */
   @Nullable
   @Override
   public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
                                         @NotNull Dcrl.BlockResponse message,
                                         @NotNull Dcrl.Certificate from) {
+    Dcrl.BlockMessage block = message.getBlock();
+    StringBuilder errorCollector = new StringBuilder();
+    if (!CryptoKt.verifyVerbose(block.getCertificate(),
+        errorCollector::append,
+        ((ByteString bytes) -> getTrustStore().get(bytes)),
+        ((ByteString bytes) -> getCurrentRevokedList().contains(bytes)),
+        Dcrl.CertificateUsage.PARTICIPATION
+    )) {
+      return ProtocolServerUtil.buildErrorMessage(
+          "Invalid certificate for " + block.getCertificate().getSubject() + ": " + errorCollector,
+          this.selfCertificate,
+          this.selfPrivateKey);
+    }
+
+    ByteString blockHash = Util.hash(block);
+    if (this.seenBlocks.contains(blockHash) || block.getHeight() <= this.blockchain.tipHeight()) {
+      return null;
+    } else if (block.getHeight() > this.blockchain.tipHeight() + 1) {
+      holdOrphan(identity, block, blockHash, null);
+    } else if (!this.blockchain.tipHash().equals(block.getPreviousBlock())) {
+      this.blockSync.start(identity, this.otherParticipantsAndAuthorities);
+    } else {
+      extendChain(identity, block, null);
+    }
     return null;
   }
 
+  /*
+  Adds the block, which follows on from our newest, to the chain (and with it any orphans waiting for it). When
+  gossiping, the block is passed along exactly as it was signed so it reaches the participants the minter didn't pick.
+   */
+  private void extendChain(@NotNull NetworkIdentity from,
+                           @NotNull Dcrl.BlockMessage block,
+                           @Nullable Dcrl.DCRLMessage signed) {
+    this.blockchain.append(block);
+    this.seenBlocks.add(this.blockchain.tipHash());
+    processBlockchain();
+    if (this.gossipFanout > 0 && signed != null) {
+      broadcast(this.otherParticipantsAndAuthorities, signed, this.gossipFanout, from);
+    }
+  }
+
+  /*
+  Keeps a block that's ahead of our chain until the blocks between arrive, asking the sender for the ones nobody's
+  been asked for yet. A block too far ahead to fill in one at a time starts a sync instead.
+   */
+  private void holdOrphan(@NotNull NetworkIdentity from,
+                          @NotNull Dcrl.BlockMessage block,
+                          @NotNull ByteString blockHash,
+                          @Nullable Dcrl.DCRLMessage signed) {
+    if (block.getHeight() - this.blockchain.tipHeight() > MAX_ORPHAN_GAP) {
+      this.blockSync.start(from, this.otherParticipantsAndAuthorities);
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    this.orphans.add(new OrphanPool.Orphan(block, blockHash, from, signed, now));
+    for (long height = this.blockchain.size(); height < block.getHeight(); height++) {
+      if (this.orphans.shouldRequest(height, now)) {
+        sendMessageToIdentity(from, Dcrl.DCRLMessage.newBuilder()
+            .setUnsignedMessage(
+                Dcrl.UnsignedMessage.newBuilder()
+                    .setBlockRequest(Dcrl.BlockRequest.newBuilder().setHeight(height)))
+            .build());
+      }
+    }
+    Log.debug(() -> "Holding block " + block.getHeight() + " from " + from + " until its parent arrives, " +
+        this.orphans.size() + " orphans");
+  }
+
+  /*
+  Adds every orphan that now follows on from our newest block, and the orphans waiting on those
+   */
+  private void attachOrphans() {
+    List<OrphanPool.Orphan> children;
+    while (!(children = this.orphans.takeChildrenOf(this.blockchain.tipHash())).isEmpty()) {
+      // the others, if any, were minted at the same height and lost
+      OrphanPool.Orphan next = children.get(0);
+      if (next.block.getHeight() != this.blockchain.size()) {
+        return;
+      }
+      Log.debug(() -> "Adding orphan block " + next.block.getHeight() + " now that its parent is in");
+      this.blockchain.append(next.block);
+      this.seenBlocks.add(next.hash);
+      super.processBlockchain();
+      if (this.gossipFanout > 0 && next.signed != null) {
+        broadcast(this.otherParticipantsAndAuthorities, next.signed, this.gossipFanout, next.from);
+      }
+    }
+  }
+
+  /**
+   * Brings the revoked list up to date with the chain, then adds any orphans that the chain's newest block lets in.
+   */
+  @Override
+  protected void processBlockchain() {
+    super.processBlockchain();
+    attachOrphans();
+  }
+
   /**
    * Reply with the block they requested
    */
   @Nullable
   @Override
   public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity, @NotNull Dcrl.BlockRequest message) {
+    if (message.getHeight() < 0 || message.getHeight() >= this.blockchain.size()) {
+      return ProtocolServerUtil.buildErrorMessage(
+          "No block at height " + message.getHeight() + ".",
+          this.selfCertificate,
+          this.selfPrivateKey);
+    }
+
     Dcrl.BlockResponse blockResponse = Dcrl.BlockResponse.newBuilder().setBlock(
         this.blockchain.get((int) message.getHeight()))
         .build();
@@ -200,13 +357,64 @@ abstract public class ParticipantJavaAbstract extends ObserverRoleServer {
         .build();
   }
 
+  /**
+   * Reply with the revocation of the requested certificate in the block at the requested height, and proof that it's
+   * part of that block's merkle root
+   */
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
+                                        @NotNull Dcrl.RevocationProofRequest message) {
+    if (message.getHeight() < 0 || message.getHeight() >= this.blockchain.size()) {
+      return ProtocolServerUtil.buildErrorMessage(
+          "No block at height " + message.getHeight() + ".",
+          this.selfCertificate,
+          this.selfPrivateKey);
+    }
+
+    Dcrl.BlockMessage block = this.blockchain.get((int) message.getHeight());
+    List<Dcrl.CertificateRevocation> revocations = block.getCertificateRevocationsList();
+    for (int i = 0; i < revocations.size(); i++) {
+      if (Util.hashCert(revocations.get(i).getCertificate()).equals(message.getCertificateHash())) {
+        Dcrl.RevocationProofResponse proofResponse = Dcrl.RevocationProofResponse.newBuilder()
+            .setBlockHeader(block.toBuilder().clearCertificateRevocations())
+            .setRevocation(revocations.get(i))
+            .addAllProof(Util.merkleProof(revocations, i))
+            .build();
+
+        return Dcrl.DCRLMessage.newBuilder()
+            .setSignedMessage(
+                Dcrl.SignedMessage.newBuilder()
+                    .setCertificate(this.selfCertificate)
+                    .setSignature(Util.sign(proofResponse, this.selfPrivateKey))
+                    .setRevocationProofResponse(proofResponse))
+            .build();
+      }
+    }
+    return ProtocolServerUtil.buildErrorMessage(
+        "That certificate wasn't revoked in block " + message.getHeight() + ".",
+        this.selfCertificate,
+        this.selfPrivateKey);
+  }
+
+  /**
+   * drop message bc we have whole blocks.
+   */
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
+                                        @NotNull Dcrl.RevocationProofResponse message,
+                                        @NotNull Dcrl.Certificate from) {
+    return null;
+  }
+
   /**
    * reply with blockchain
    */
   @Nullable
   @Override
   public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity, @NotNull Dcrl.BlockchainRequest message) {
-    Dcrl.BlockchainResponse blockchainResponse = Dcrl.BlockchainResponse.newBuilder().addAllBlocks(this.blockchain).build();
+    Dcrl.BlockchainResponse blockchainResponse = Dcrl.BlockchainResponse.newBuilder().addAllBlocks(this.blockchain.asList()).build();
 
     return Dcrl.DCRLMessage.newBuilder()
         .setSignedMessage(
@@ -218,107 +426,102 @@ abstract public class ParticipantJavaAbstract extends ObserverRoleServer {
   }
 
   /**
-   * set blockchain if it validates
+   * Reply with the requested blocks, as many as fit in one chunk of at most MAX_RANGE_BLOCKS blocks and (unless it's
+   * a single block) MAX_RANGE_BYTES bytes
    */
   @Nullable
   @Override
-  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
-                                        @NotNull Dcrl.BlockchainResponse message,
-                                        @NotNull Dcrl.Certificate from) {
-    // validate blockchain
-    if (!this.validateBlockchain(message.getBlocksList())) {
-      return ProtocolServerUtil.buildErrorMessage(
-          "Invalid blockchain.",
-          this.selfCertificate,
-          this.selfPrivateKey
-      );
-    }
-
-    this.blockchain = message.getBlocksList();
-
-    System.out.println(this.blockchain.size());
-    this.getCurrentRevokedList().clear();
-    for (Dcrl.BlockMessage block :
-        this.blockchain) {
-      for (Dcrl.CertificateRevocation revocation :
-          block.getCertificateRevocationsList()) {
-        this.getCurrentRevokedList().put(Util.hashCert(revocation.getCertificate()), revocation.getCertificate());
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity, @NotNull Dcrl.BlockRangeRequest message) {
+    int limit = message.getLimit() <= 0 ? MAX_RANGE_BLOCKS : Math.min(message.getLimit(), MAX_RANGE_BLOCKS);
+    Dcrl.BlockRangeResponse.Builder rangeResponse = Dcrl.BlockRangeResponse.newBuilder()
+        .setFromHeight(message.getFromHeight())
+        .setTipHeight(this.blockchain.tipHeight());
+
+    // heights past 2^63 come through as negative, and we don't have those either
+    long bytes = 0;
+    for (long height = message.getFromHeight();
+         height >= 0 && height < this.blockchain.size() && rangeResponse.getBlocksCount() < limit;
+         height++) {
+      Dcrl.BlockMessage block = this.blockchain.get((int) height);
+      bytes += block.getSerializedSize();
+      if (rangeResponse.getBlocksCount() > 0 && bytes > MAX_RANGE_BYTES) {
+        break;
       }
+      rangeResponse.addBlocks(block);
     }
-    return null;
+
+    Dcrl.BlockRangeResponse built = rangeResponse.build();
+    return Dcrl.DCRLMessage.newBuilder()
+        .setSignedMessage(
+            Dcrl.SignedMessage.newBuilder()
+                .setCertificate(this.selfCertificate)
+                .setSignature(Util.sign(built, this.selfPrivateKey))
+                .setBlockRangeResponse(built))
+        .build();
   }
 
   /**
-   * print error
+   * Reply with the requested headers (the blocks without their revocations), as many as fit in one chunk of at most
+   * MAX_HEADERS headers and (unless it's a single header) MAX_RANGE_BYTES bytes
    */
   @Nullable
   @Override
-  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
-                                        @NotNull Dcrl.ErrorMessage message,
-                                        @Nullable Dcrl.Certificate from) {
-    System.out.println("got error" + message.getError());
-    System.out.println(message.getError());
-    return null;
-  }
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity, @NotNull Dcrl.HeadersRequest message) {
+    int limit = message.getLimit() <= 0 ? MAX_HEADERS : Math.min(message.getLimit(), MAX_HEADERS);
+    Dcrl.HeadersResponse.Builder headersResponse = Dcrl.HeadersResponse.newBuilder()
+        .setFromHeight(message.getFromHeight())
+        .setTipHeight(this.blockchain.tipHeight());
+
+    long bytes = 0;
+    for (long height = message.getFromHeight();
+         height >= 0 && height < this.blockchain.size() && headersResponse.getHeadersCount() < limit;
+         height++) {
+      Dcrl.BlockMessage header = this.blockchain.get((int) height).toBuilder().clearCertificateRevocations().build();
+      bytes += header.getSerializedSize();
+      if (headersResponse.getHeadersCount() > 0 && bytes > MAX_RANGE_BYTES) {
+        break;
+      }
+      headersResponse.addHeaders(header);
+    }
 
-  @NotNull
-  private Dcrl.DCRLMessage requestNewBlockchain(NetworkIdentity identity) {
+    Dcrl.HeadersResponse built = headersResponse.build();
     return Dcrl.DCRLMessage.newBuilder()
-        .setUnsignedMessage(
-            Dcrl.UnsignedMessage.newBuilder()
-                .setBlockchainRequest(Dcrl.BlockchainRequest.getDefaultInstance()))
+        .setSignedMessage(
+            Dcrl.SignedMessage.newBuilder()
+                .setCertificate(this.selfCertificate)
+                .setSignature(Util.sign(built, this.selfPrivateKey))
+                .setHeadersResponse(built))
         .build();
   }
 
   /**
-   * checks if the given blockchain is valid
-   * <p>
-   * - blocks must have a valid and trusted certificate
-   * - blocks must be hashed in order
-   * - blocks must be in increasing order
+   * Reply with the newest block from their locator that's in our chain, or the genesis block if none are
    */
-  private boolean validateBlockchain(List<Dcrl.BlockMessage> chain) {
-    if (chain.size() == 0) {
-      return false;
-    }
-
-    ByteString prevBlockPrevHash = Constants.GENESIS_BLOCK_HASH;
-    int prevBlockHeight = Constants.GENESIS_BLOCK_HEIGHT;
-
-    for (int b = 1; b < chain.size(); b++) {
-      Dcrl.BlockMessage block = chain.get(b);
-      Dcrl.Certificate blockCert = block.getCertificate();
-      ByteString blockPrevHash = block.getPreviousBlock();
-      int blockHeight = (int) block.getHeight();
-
-
-      Consumer<String> errorPrinter = System.err::println;
-      if (!CryptoKt.verifyVerbose(blockCert,
-          errorPrinter,
-          ((ByteString bytes) -> getTrustStore().get(bytes)),
-          ((ByteString bytes) -> getCurrentRevokedList().containsKey(bytes)),
-          Dcrl.CertificateUsage.PARTICIPATION
-      )) {
-        System.out.println(errorPrinter.toString());
-        return false;
-      }
-
-      if (!prevBlockPrevHash.equals(blockPrevHash)) {
-        System.out.println("Hashes didn't match: previous block hash should have been ");
-        System.out.println(prevBlockPrevHash);
-        System.out.println("but instead was");
-        System.out.println(blockPrevHash);
-        return false;
-      }
-
-      if (prevBlockHeight + 1 != blockHeight) {
-        System.out.println("Height didn't match");
-        return false;
+  @Nullable
+  @Override
+  public Dcrl.DCRLMessage handleMessage(@NotNull NetworkIdentity identity,
+                                        @NotNull Dcrl.ForkLocatorRequest message) {
+    int commonHeight = 0;
+    List<ByteString> hashes = message.getBlockHashesList();
+    for (int i = 0; i < hashes.size() && i < MAX_LOCATOR_HASHES; i++) {
+      int height = this.blockchain.heightOf(hashes.get(i));
+      if (height >= 0) {
+        commonHeight = height;
+        break;
       }
-
-      prevBlockPrevHash = Util.hash(block);
-      prevBlockHeight++;
     }
-    return true;
+
+    Dcrl.ForkLocatorResponse locatorResponse = Dcrl.ForkLocatorResponse.newBuilder()
+        .setCommonHeight(commonHeight)
+        .setCommonHash(this.blockchain.hashAt(commonHeight))
+        .setTipHeight(this.blockchain.tipHeight())
+        .build();
+    return Dcrl.DCRLMessage.newBuilder()
+        .setSignedMessage(
+            Dcrl.SignedMessage.newBuilder()
+                .setCertificate(this.selfCertificate)
+                .setSignature(Util.sign(locatorResponse, this.selfPrivateKey))
+                .setForkLocatorResponse(locatorResponse))
+        .build();
   }
 }
\ No newline at end of file
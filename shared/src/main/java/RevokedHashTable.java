@@ -0,0 +1,188 @@
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * A set of 32-byte (SHA-256) hashes kept in one flat long[], four longs to a hash, with open addressing and linear
+ * probing. That's 32 bytes a slot and no objects per entry, where a HashSet of ByteStrings costs well over 100 bytes
+ * an entry. The table doubles once it's {@link #MAX_LOAD} full, so it's 43 to 85 bytes per hash.
+ * <p>
+ * The all-zero hash marks an empty slot, so whether it's in the set is kept on the side. Removal shifts the rest of
+ * the probe run back, so there are no tombstones and lookups never slow down as entries come and go.
+ * <p>
+ * It isn't thread-safe: RevokedSet guards it.
+ */
+public final class RevokedHashTable {
+  public static final int HASH_BYTES = 32;
+  public static final double MAX_LOAD = 0.75;
+  private static final int WORDS = HASH_BYTES / Long.BYTES;
+  private static final int MIN_SLOTS = 1024;
+  private static final int MAX_SLOTS = 1 << 28;
+
+  private long[] words;
+  private int mask;
+  private int size;
+  private boolean containsZero;
+
+  public RevokedHashTable() {
+    allocate(MIN_SLOTS);
+  }
+
+  public boolean contains(@NotNull ByteString hash) {
+    if (hash.size() != HASH_BYTES) {
+      return false;
+    }
+    long w0 = word(hash, 0), w1 = word(hash, 1), w2 = word(hash, 2), w3 = word(hash, 3);
+    if (isZero(w0, w1, w2, w3)) {
+      return this.containsZero;
+    }
+    return find(w0, w1, w2, w3) >= 0;
+  }
+
+  /*
+  Returns whether the hash wasn't already there
+   */
+  public boolean add(@NotNull ByteString hash) {
+    checkSize(hash);
+    long w0 = word(hash, 0), w1 = word(hash, 1), w2 = word(hash, 2), w3 = word(hash, 3);
+    if (isZero(w0, w1, w2, w3)) {
+      boolean added = !this.containsZero;
+      this.containsZero = true;
+      return added;
+    }
+    if (find(w0, w1, w2, w3) >= 0) {
+      return false;
+    }
+    if (this.size + 1 > MAX_LOAD * (this.mask + 1)) {
+      grow();
+    }
+    int slot = home(w0);
+    while (!isEmpty(slot)) {
+      slot = (slot + 1) & this.mask;
+    }
+    store(slot, w0, w1, w2, w3);
+    this.size++;
+    return true;
+  }
+
+  /*
+  Returns whether the hash was there
+   */
+  public boolean remove(@NotNull ByteString hash) {
+    if (hash.size() != HASH_BYTES) {
+      return false;
+    }
+    long w0 = word(hash, 0), w1 = word(hash, 1), w2 = word(hash, 2), w3 = word(hash, 3);
+    if (isZero(w0, w1, w2, w3)) {
+      boolean removed = this.containsZero;
+      this.containsZero = false;
+      return removed;
+    }
+    int slot = find(w0, w1, w2, w3);
+    if (slot < 0) {
+      return false;
+    }
+
+    // move back every later entry in the run that could have gone in the hole, so no probe stops short of it
+    int hole = slot;
+    for (int next = (hole + 1) & this.mask; !isEmpty(next); next = (next + 1) & this.mask) {
+      int nextHome = home(this.words[next * WORDS]);
+      if (((next - nextHome) & this.mask) >= ((next - hole) & this.mask)) {
+        System.arraycopy(this.words, next * WORDS, this.words, hole * WORDS, WORDS);
+        hole = next;
+      }
+    }
+    Arrays.fill(this.words, hole * WORDS, hole * WORDS + WORDS, 0L);
+    this.size--;
+    return true;
+  }
+
+  public int size() {
+    return this.size + (this.containsZero ? 1 : 0);
+  }
+
+  public void clear() {
+    allocate(MIN_SLOTS);
+    this.containsZero = false;
+  }
+
+  /*
+  The bytes the table itself takes
+   */
+  public long footprintBytes() {
+    return (long) this.words.length * Long.BYTES;
+  }
+
+  private int find(long w0, long w1, long w2, long w3) {
+    for (int slot = home(w0); !isEmpty(slot); slot = (slot + 1) & this.mask) {
+      int at = slot * WORDS;
+      if (this.words[at] == w0 && this.words[at + 1] == w1 && this.words[at + 2] == w2 && this.words[at + 3] == w3) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private void grow() {
+    int slots = this.mask + 1;
+    if (slots >= MAX_SLOTS) {
+      throw new IllegalStateException("The revoked hash table can't hold more than " + (long) (MAX_LOAD * slots));
+    }
+    long[] old = this.words;
+    allocate(slots * 2);
+    for (int at = 0; at < old.length; at += WORDS) {
+      if ((old[at] | old[at + 1] | old[at + 2] | old[at + 3]) != 0) {
+        int slot = home(old[at]);
+        while (!isEmpty(slot)) {
+          slot = (slot + 1) & this.mask;
+        }
+        System.arraycopy(old, at, this.words, slot * WORDS, WORDS);
+        this.size++;
+      }
+    }
+  }
+
+  private void allocate(int slots) {
+    this.words = new long[slots * WORDS];
+    this.mask = slots - 1;
+    this.size = 0;
+  }
+
+  private void store(int slot, long w0, long w1, long w2, long w3) {
+    int at = slot * WORDS;
+    this.words[at] = w0;
+    this.words[at + 1] = w1;
+    this.words[at + 2] = w2;
+    this.words[at + 3] = w3;
+  }
+
+  private boolean isEmpty(int slot) {
+    int at = slot * WORDS;
+    return (this.words[at] | this.words[at + 1] | this.words[at + 2] | this.words[at + 3]) == 0;
+  }
+
+  // the hashes are SHA-256, so any of their bits will do; these are mixed anyway in case the keys are ever chosen
+  private int home(long w0) {
+    long mixed = w0 * 0x9E3779B97F4A7C15L;
+    return (int) (mixed ^ (mixed >>> 32)) & this.mask;
+  }
+
+  private static boolean isZero(long w0, long w1, long w2, long w3) {
+    return (w0 | w1 | w2 | w3) == 0;
+  }
+
+  private static long word(@NotNull ByteString hash, int index) {
+    long word = 0;
+    for (int i = index * Long.BYTES; i < (index + 1) * Long.BYTES; i++) {
+      word = (word << 8) | (hash.byteAt(i) & 0xFF);
+    }
+    return word;
+  }
+
+  private static void checkSize(@NotNull ByteString hash) {
+    if (hash.size() != HASH_BYTES) {
+      throw new IllegalArgumentException("Revoked hashes are " + HASH_BYTES + " bytes, not " + hash.size());
+    }
+  }
+}
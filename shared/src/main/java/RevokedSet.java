@@ -0,0 +1,82 @@
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The hashes of every revoked certificate, in a {@link RevokedHashTable}. Only the hashes are kept: a revoked
+ * certificate itself is in the block that revoked it.
+ * <p>
+ * Only the state machine changes it, but the web interface's threads read it too. A batch of changes made through
+ * {@link #atomically} is seen by readers all at once: a lookup waits while one is being made. Revoking a certificate
+ * also drops any cached verification of it (see {@link VerifiedCertificateCache}).
+ */
+public class RevokedSet {
+  private final RevokedHashTable hashes = new RevokedHashTable();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  public boolean contains(@NotNull ByteString certificateHash) {
+    this.lock.readLock().lock();
+    try {
+      return this.hashes.contains(certificateHash);
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  public void add(@NotNull ByteString certificateHash) {
+    atomically(() -> {
+      this.hashes.add(certificateHash);
+      VerifiedCertificateCache.invalidate(certificateHash);
+    });
+  }
+
+  public void add(@NotNull Dcrl.Certificate certificate) {
+    add(Util.hashCert(certificate));
+  }
+
+  public void remove(@NotNull ByteString certificateHash) {
+    atomically(() -> {
+      this.hashes.remove(certificateHash);
+      VerifiedCertificateCache.invalidate(certificateHash);
+    });
+  }
+
+  public void clear() {
+    atomically(this.hashes::clear);
+  }
+
+  /*
+  Makes the changes (any adds and removes on this set) visible to readers together
+   */
+  public void atomically(@NotNull Runnable changes) {
+    this.lock.writeLock().lock();
+    try {
+      changes.run();
+    } finally {
+      this.lock.writeLock().unlock();
+    }
+  }
+
+  public int size() {
+    this.lock.readLock().lock();
+    try {
+      return this.hashes.size();
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+
+  /*
+  The bytes the hash table takes
+   */
+  public long footprintBytes() {
+    this.lock.readLock().lock();
+    try {
+      return this.hashes.footprintBytes();
+    } finally {
+      this.lock.readLock().unlock();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a RevokedSet in step with a chain without replaying the whole chain every time the chain changes.
+ * <p>
+ * Every {@link #INTERVAL} blocks there's a checkpoint, tagged with the height and hash of its last block. It holds
+ * the certificate hashes that were first revoked since the checkpoint before it, so the set as it was at any
+ * checkpoint can be recovered by taking out every hash from the checkpoints (and the blocks) after it. When the chain
+ * changes, the set is rolled back to the newest checkpoint still on the new chain, then only the blocks after that are
+ * applied. A chain that just grew doesn't roll anything back.
+ * <p>
+ * The blocks since the newest checkpoint are each kept the same way, as a checkpoint of their own, so a fork among
+ * them (which is where almost every fork is) is rolled back to exactly the block it forked at.
+ * <p>
+ * The roll back and the blocks after it are published to the set's readers as one change, so they never see the set
+ * part way between the old chain and the new one. The new blocks' revocations are hashed before that starts.
+ * <p>
+ * Only the state machine uses it, apart from {@link #publishedCheckpointCount}, which any thread can read.
+ */
+public class RevokedSetCheckpoints {
+  public static final int INTERVAL = 128;
+
+  private final RevokedSet revoked;
+  private final List<Checkpoint> checkpoints = new ArrayList<>();
+  // one per block after the newest checkpoint
+  private final List<Checkpoint> recentBlocks = new ArrayList<>();
+  // the newest block in the set, -1 (and an empty hash) for none
+  private int appliedHeight = -1;
+  private ByteString appliedHash = ByteString.EMPTY;
+  // checkpointCount() as of the last change, for other threads (like the metrics endpoint) to read
+  private volatile int publishedCheckpointCount = 0;
+
+  public RevokedSetCheckpoints(@NotNull RevokedSet revoked) {
+    this.revoked = revoked;
+  }
+
+  /*
+  Makes the set hold every revocation in the chain
+   */
+  public void catchUp(@NotNull ChainIndex chain) {
+    // how much of what's applied is still on the chain: all of it, unless the chain changed below its tip
+    int keepRecent = this.recentBlocks.size();
+    int keepCheckpoints = this.checkpoints.size();
+    int fromHeight = this.appliedHeight;
+    if (this.appliedHeight > chain.tipHeight() ||
+        (this.appliedHeight >= 0 && !chain.hashAt(this.appliedHeight).equals(this.appliedHash))) {
+      while (keepRecent > 0 && !this.recentBlocks.get(keepRecent - 1).isOn(chain)) {
+        keepRecent--;
+      }
+      if (keepRecent == 0) {
+        while (keepCheckpoints > 0 && !this.checkpoints.get(keepCheckpoints - 1).isOn(chain)) {
+          keepCheckpoints--;
+        }
+      }
+      Checkpoint kept = newest(keepRecent, keepCheckpoints);
+      fromHeight = kept == null ? -1 : kept.height;
+    }
+    if (fromHeight == chain.tipHeight() && keepRecent == this.recentBlocks.size() &&
+        keepCheckpoints == this.checkpoints.size()) {
+      return;
+    }
+
+    List<List<ByteString>> added = new ArrayList<>();
+    for (int height = fromHeight + 1; height <= chain.tipHeight(); height++) {
+      List<Dcrl.CertificateRevocation> revocations = chain.get(height).getCertificateRevocationsList();
+      List<ByteString> hashes = new ArrayList<>(revocations.size());
+      for (Dcrl.CertificateRevocation revocation : revocations) {
+        hashes.add(Util.hashCert(revocation.getCertificate()));
+      }
+      added.add(hashes);
+    }
+
+    int recentToKeep = keepRecent;
+    int checkpointsToKeep = keepCheckpoints;
+    int firstNewHeight = fromHeight + 1;
+    this.revoked.atomically(() -> {
+      rollBack(recentToKeep, checkpointsToKeep);
+      apply(chain, firstNewHeight, added);
+    });
+    this.publishedCheckpointCount = this.checkpoints.size();
+  }
+
+  public int checkpointCount() {
+    return this.checkpoints.size();
+  }
+
+  /*
+  How many checkpoints there were as of the last change, which unlike checkpointCount() any thread can read
+   */
+  public int publishedCheckpointCount() {
+    return this.publishedCheckpointCount;
+  }
+
+  /*
+  Takes out everything after the first keepRecent blocks since the newest checkpoint, and (if that's none of them)
+  after the first keepCheckpoints checkpoints
+   */
+  private void rollBack(int keepRecent, int keepCheckpoints) {
+    if (keepRecent == this.recentBlocks.size() && keepCheckpoints == this.checkpoints.size()) {
+      return;
+    }
+    while (this.recentBlocks.size() > keepRecent) {
+      removeAll(this.recentBlocks.remove(this.recentBlocks.size() - 1).firstRevoked);
+    }
+    int dropped = this.checkpoints.size() - keepCheckpoints;
+    while (this.checkpoints.size() > keepCheckpoints) {
+      removeAll(this.checkpoints.remove(this.checkpoints.size() - 1).firstRevoked);
+    }
+
+    Checkpoint kept = newest(this.recentBlocks.size(), this.checkpoints.size());
+    this.appliedHeight = kept == null ? -1 : kept.height;
+    this.appliedHash = kept == null ? ByteString.EMPTY : kept.blockHash;
+    Log.debug(() -> "Rolled the revoked set back to height " + this.appliedHeight +
+        ", dropping " + dropped + " checkpoints");
+  }
+
+  /*
+  Adds the revoked hashes of the blocks from the height onwards, one list per block
+   */
+  private void apply(@NotNull ChainIndex chain, int fromHeight, @NotNull List<List<ByteString>> added) {
+    for (int i = 0; i < added.size(); i++) {
+      int height = fromHeight + i;
+      List<ByteString> firstRevoked = new ArrayList<>();
+      for (ByteString hash : added.get(i)) {
+        if (!this.revoked.contains(hash)) {
+          this.revoked.add(hash);
+          firstRevoked.add(hash);
+        }
+      }
+      this.appliedHeight = height;
+      this.appliedHash = chain.hashAt(height);
+      this.recentBlocks.add(new Checkpoint(height, this.appliedHash, firstRevoked));
+      if ((height + 1) % INTERVAL == 0) {
+        List<ByteString> sinceLastCheckpoint = new ArrayList<>();
+        for (Checkpoint block : this.recentBlocks) {
+          sinceLastCheckpoint.addAll(block.firstRevoked);
+        }
+        this.checkpoints.add(new Checkpoint(height, this.appliedHash, sinceLastCheckpoint));
+        this.recentBlocks.clear();
+      }
+    }
+  }
+
+  @Nullable
+  private Checkpoint newest(int recent, int checkpoints) {
+    if (recent > 0) {
+      return this.recentBlocks.get(recent - 1);
+    }
+    return checkpoints > 0 ? this.checkpoints.get(checkpoints - 1) : null;
+  }
+
+  private void removeAll(@NotNull List<ByteString> hashes) {
+    for (ByteString hash : hashes) {
+      this.revoked.remove(hash);
+    }
+  }
+
+  private static final class Checkpoint {
+    final int height;
+    final ByteString blockHash;
+    final List<ByteString> firstRevoked;
+
+    Checkpoint(int height, @NotNull ByteString blockHash, @NotNull List<ByteString> firstRevoked) {
+      this.height = height;
+      this.blockHash = blockHash;
+      this.firstRevoked = firstRevoked;
+    }
+
+    boolean isOn(@NotNull ChainIndex chain) {
+      return this.height <= chain.tipHeight() && chain.hashAt(this.height).equals(this.blockHash);
+    }
+  }
+}
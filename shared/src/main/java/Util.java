@@ -1,13 +1,9 @@
 import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
-import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.GeneratedMessageV3;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.ArrayList;
 import java.util.List;
 
 @SuppressWarnings("UnstableApiUsage")
@@ -18,72 +14,38 @@ public class Util {
 
   Base Case: list is empty --> return byte[0]
 
-  Uses Generative Recursion:
-  - Base Case: size == 1 --> repeat the revocation and recur (immediately hitting Base Case 2) (so I don't copy code)
-  - Base Case: size == 2 --> hash each revocation, concatenate, and hash again
-  - Recursive Case:
-    - Divide the list so the left is smaller than the input and a power of 2
+  Otherwise the root of this tree:
+  - size == 1 --> the revocation is paired with itself
+  - size == 2 --> hash each revocation's hash, concatenate, and hash again
+  - bigger:
+    - Divide the list so the left is smaller than the input and a power of 2 (see MerkleTree.split)
     - The right is the rest of the list (right has a size of non-0)
-    - Recur on each side
-    - Concatenate the hashes and hash again
+    - Concatenate the roots of each side and hash again
+
+  The tree is built iteratively (and in parallel for big lists) by MerkleTree.
    */
   @NotNull
   public static byte[] merkleRoot(@NotNull List<Dcrl.CertificateRevocation> revocations) {
-    if (revocations.size() == 0) {
-      return new byte[0];
-
-    } else if (revocations.size() == 1) {
-      // repeat the element
-      // no mutating :)
-      List<Dcrl.CertificateRevocation> dup = new ArrayList<Dcrl.CertificateRevocation>();
-      dup.add(revocations.get(0));
-      dup.add(revocations.get(0));
-
-      return merkleRoot(dup);
-
-    } else if (revocations.size() == 2) {
-      // hash each element, concatenate, and hash again
-      HashFunction sha256 = Hashing.sha256();
-
-      byte[] rev0_hash = sha256.newHasher()
-          .putBytes(hash(revocations.get(0)).asReadOnlyByteBuffer())
-          .hash()
-          .asBytes();
-      byte[] rev1_hash = sha256.newHasher()
-          .putBytes(hash(revocations.get(1)).asReadOnlyByteBuffer())
-          .hash()
-          .asBytes();
-
-      byte[] root_hash = sha256.newHasher()
-          .putBytes(rev0_hash)
-          .putBytes(rev1_hash)
-          .hash()
-          .asBytes();
-
-      return root_hash;
-
-    } else {
-      // divide the list so the left is a power of two and the right is the rest
-      double pow_2 = Math.ceil(Math.sqrt(revocations.size())); // want to round up
-      int divide = (int) Math.pow(2, pow_2 - 1); // minus 1 so the left is always smaller than the input
-
-      List<Dcrl.CertificateRevocation> left = revocations.subList(0, divide);
-      List<Dcrl.CertificateRevocation> right = revocations.subList(divide, revocations.size());
-
-      // hash each side, concatenate, and hash again
-      byte[] left_hash = merkleRoot(left);
-      byte[] right_hash = merkleRoot(right);
-
-      HashFunction sha256 = Hashing.sha256();
-
-      byte[] root_hash = sha256.newHasher()
-          .putBytes(left_hash)
-          .putBytes(right_hash)
-          .hash()
-          .asBytes();
-
-      return root_hash;
-    }
+    return MerkleTree.root(revocations);
+  }
+
+  /*
+  Proof that revocations.get(index) is part of merkleRoot(revocations): the sibling of each node on the path from the
+  revocation's leaf up to the root
+   */
+  @NotNull
+  public static List<Dcrl.MerkleProofStep> merkleProof(@NotNull List<Dcrl.CertificateRevocation> revocations,
+                                                       int index) {
+    return MerkleTree.proof(MerkleTree.leafDigests(revocations), revocations.size(), index);
+  }
+
+  /*
+  Checks a proof from merkleProof against a block's merkle root
+   */
+  public static boolean verifyMerkleProof(@NotNull Dcrl.CertificateRevocation revocation,
+                                          @NotNull List<Dcrl.MerkleProofStep> proof,
+                                          @NotNull ByteString merkleRoot) {
+    return MerkleTree.verify(MerkleTree.leafDigest(revocation), proof, merkleRoot.toByteArray());
   }
 
   @NotNull
@@ -96,65 +58,34 @@ public class Util {
       return hashBlock((Dcrl.BlockMessageOrBuilder) msg);
     }
 
-    HashFunction hf = Hashing.sha256();
+    return DigestCache.computeIfAbsent(msg, (GeneratedMessageV3 message) -> {
+      HashFunction hf = Hashing.sha256();
 
-    byte[] hash = hf.newHasher().putBytes(msg.toByteArray()).hash().asBytes();
+      byte[] hash = hf.newHasher().putBytes(message.toByteArray()).hash().asBytes();
 
-    return ByteString.copyFrom(hash);
+      return ByteString.copyFrom(hash);
+    });
   }
 
+  /*
+  Hashes are cached per certificate instance, see DigestCache
+   */
   @NotNull
   public static ByteString hashCert(@NotNull Dcrl.CertificateOrBuilder cert) {
-    HashFunction hf = Hashing.sha256();
-
-    Hasher hasher = hf.newHasher()
-        .putBytes(cert.getSubjectBytes().toByteArray())
-        .putLong(cert.getValidFrom())
-        .putInt(cert.getValidLength());
-    for (Dcrl.CertificateUsage usage : cert.getUsagesList()) {
-      hasher.putInt(usage.getNumber());
-    }
-    hasher.putBytes(cert.getSigningPublicKey().toByteArray())
-        .putBytes(cert.getIssuerCertificateHash().toByteArray())
-        .putBytes(cert.getIssuerSignature().toByteArray());
-
-    return ByteString.copyFrom(hasher.hash().asBytes());
+    return DigestCache.computeIfAbsent(cert, CanonicalEncoder::hashCert);
   }
 
   /*
-  Function for hashing a BlockMessage
+  Function for hashing a BlockMessage (cached per block instance, see DigestCache)
    */
   @NotNull
   public static ByteString hashBlock(@NotNull Dcrl.BlockMessageOrBuilder block) {
-    HashFunction hf = Hashing.sha256();
-
-    return ByteString.copyFrom(hf.newHasher()
-        .putBytes(digestForHash(block.getCertificate()))
-        .putLong(block.getHeight())
-        .putBytes(block.getPreviousBlock().toByteArray())
-        .putLong(block.getTimestamp())
-        .putBytes(block.getMerkleRoot().toByteArray())
-        .hash()
-        .asBytes());
+    return DigestCache.computeIfAbsent(block, CanonicalEncoder::hashBlock);
   }
 
   @NotNull
   public static byte[] digestForHash(@NotNull Dcrl.CertificateOrBuilder cert) {
-
-    ByteString digest = ByteString.EMPTY;
-    digest = digest
-        .concat(cert.getSubjectBytes())
-        .concat(ByteString.copyFrom(Longs.toByteArray(cert.getValidFrom())))
-        .concat(ByteString.copyFrom(Ints.toByteArray(cert.getValidLength())));
-    for (Dcrl.CertificateUsage usage : cert.getUsagesList()) {
-      digest = digest.concat(ByteString.copyFrom(Ints.toByteArray(usage.getNumber())));
-    }
-    digest = digest
-        .concat(cert.getSigningPublicKey())
-        .concat(cert.getIssuerCertificateHash())
-        .concat(cert.getIssuerSignature());
-
-    return digest.toByteArray();
+    return CanonicalEncoder.digestForHash(cert);
   }
 
   /*
@@ -168,7 +99,7 @@ public class Util {
       return signCert((Dcrl.CertificateOrBuilder) message, private_key);
     }
 
-    return ByteString.copyFrom(CryptoKt.sign(message.toByteArray(), private_key));
+    return ByteString.copyFrom(CryptoEngine.sign(message, private_key));
   }
 
   @NotNull
@@ -195,6 +126,18 @@ public class Util {
       case ANNOUNCE:
         message = signedMessage.getAnnounce();
         break;
+      case REVOCATION_PROOF_RESPONSE:
+        message = signedMessage.getRevocationProofResponse();
+        break;
+      case BLOCK_RANGE_RESPONSE:
+        message = signedMessage.getBlockRangeResponse();
+        break;
+      case HEADERS_RESPONSE:
+        message = signedMessage.getHeadersResponse();
+        break;
+      case FORK_LOCATOR_RESPONSE:
+        message = signedMessage.getForkLocatorResponse();
+        break;
       default: // handles MESSAGE_NOT_SET case
         return false;
     }
@@ -217,31 +160,17 @@ public class Util {
       return false;
     }
 
-    return CryptoKt.verifySign(message.toByteArray(), signature, public_key);
+    return CryptoEngine.verify(message, signature, public_key);
   }
 
   @NotNull
   public static byte[] digestForSignature(@NotNull Dcrl.CertificateOrBuilder cert) {
-
-    ByteString digest = ByteString.EMPTY;
-    digest = digest
-        .concat(cert.getSubjectBytes())
-        .concat(ByteString.copyFrom(Longs.toByteArray(cert.getValidFrom())))
-        .concat(ByteString.copyFrom(Ints.toByteArray(cert.getValidLength())));
-    for (Dcrl.CertificateUsage usage : cert.getUsagesList()) {
-      digest = digest.concat(ByteString.copyFrom(Ints.toByteArray(usage.getNumber())));
-    }
-    digest = digest
-        .concat(cert.getSigningPublicKey())
-        .concat(cert.getIssuerCertificateHash());
-    // issuer signature does not exist yet.
-
-    return digest.toByteArray();
+    return CanonicalEncoder.digestForSignature(cert);
   }
 
   @NotNull
   public static ByteString signCert(@NotNull Dcrl.CertificateOrBuilder cert, @NotNull byte[] private_key) {
-    return ByteString.copyFrom(CryptoKt.sign(digestForSignature(cert), private_key));
+    return ByteString.copyFrom(CryptoEngine.signCertificate(cert, private_key));
   }
 
 }
@@ -17,11 +17,10 @@ class AuthorityRoleServer(
           try {
             Dcrl.Certificate.parseFrom(certBytes)
           } catch (e: Exception) {
-            println("Couldn't parse certificate")
+            Log.warn { "Couldn't parse certificate" }
             throw e
           }
         }.let { cert ->
-          println("Making revocation message")
           Dcrl.DCRLMessage.newBuilder().apply {
             signedMessageBuilder.apply {
               certificate = selfCertificate
@@ -31,14 +30,13 @@ class AuthorityRoleServer(
                 certificateRevocation = it
                 signature = Util.sign(it, selfPrivateKey)
               }
-              println("Finished with revocation message")
             }
           }
         }.build().let { wrappedMsg ->
-          sendMessageToIdentity(otherParticipantsAndAuthorities.random().also { println("Started revocation with $it") }, wrappedMsg)
+          sendMessageToIdentity(otherParticipantsAndAuthorities.random().also { Log.info { "Started revocation with $it" } }, wrappedMsg)
         }
     } catch (e: Throwable) {
-      println("$e")
+      Log.warn(e) { "Revocation rejected" }
       return RevocationResponse.REVOCATION_REJECTED
     }
     return RevocationResponse.REVOCATION_STARTED
@@ -1,33 +1,10 @@
 import com.google.protobuf.ByteString
-import com.goterl.lazycode.lazysodium.LazySodiumJava
-import com.goterl.lazycode.lazysodium.SodiumJava
-import com.goterl.lazycode.lazysodium.interfaces.Sign
-import com.goterl.lazycode.lazysodium.interfaces.Sign.BYTES
-import com.sun.jna.Pointer
 import java.time.Instant
 import java.util.function.Consumer
 
-fun ByteArray.sign(secretKey: ByteArray) = let { input ->
-  (LazySodiumJava(SodiumJava()) as Sign.Native).run {
-    Sign.StateCryptoSign().let { state ->
-      cryptoSignInit(state)
-      cryptoSignUpdate(state, input, input.size.toLong())
-      ByteArray(BYTES).also {
-        cryptoSignFinalCreate(state, it, Pointer.NULL, secretKey)
-      }
-    }
-  }
-}
+fun ByteArray.sign(secretKey: ByteArray) = CryptoEngine.sign(this, secretKey)
 
-fun ByteArray.verifySign(sign: ByteArray, publicKey: ByteArray) = let { input ->
-  (LazySodiumJava(SodiumJava()) as Sign.Native).run {
-    Sign.StateCryptoSign().let { state ->
-      cryptoSignInit(state)
-      cryptoSignUpdate(state, input, input.size.toLong())
-      cryptoSignFinalVerify(state, sign, publicKey)
-    }
-  }
-}
+fun ByteArray.verifySign(sign: ByteArray, publicKey: ByteArray) = CryptoEngine.verify(this, sign, publicKey)
 
 fun Dcrl.Certificate.verifyVerbose(
   errorPrinter: Consumer<String>,
@@ -38,34 +15,58 @@ fun Dcrl.Certificate.verifyVerbose(
   { errorPrinter.accept(it) }, getFromTrustStore, isRevoked, *usage
 )
 
+// Checking the issuer's signature is the expensive part, so its outcome is cached per certificate and trusted signer
+// (see [VerifiedCertificateCache]). Everything else is checked every time.
 fun Dcrl.Certificate.verifyVerbose(
   errorPrinter: (String) -> Any?,
   getFromTrustStore: (ByteString) -> Dcrl.Certificate?,
   isRevoked: (ByteString) -> Boolean,
   vararg usage: Dcrl.CertificateUsage
 ): Boolean {
+  val now = Instant.now().epochSecond
+  val hash = Util.hashCert(this)
   when {
-    Instant.now().epochSecond < validFrom -> errorPrinter("It is before the certificate was valid: ${Instant.now().epochSecond} < $validFrom")
-    Instant.now().epochSecond > validFrom + validLength ->
-      errorPrinter("It is after the certificate was valid: ${Instant.now().epochSecond} > $validFrom + $validLength")
+    now < validFrom -> errorPrinter("It is before the certificate was valid: $now < $validFrom")
+    now > validFrom + validLength -> errorPrinter("It is after the certificate was valid: $now > $validFrom + $validLength")
     usage.any { it !in usagesList } -> errorPrinter("Required usages $usage not found in $usagesList")
-    isRevoked(Util.hashCert(this)) -> errorPrinter("isRevoked said this cert was revoked")
+    isRevoked(hash) -> errorPrinter("isRevoked said this cert was revoked")
     subject.isNullOrEmpty() -> errorPrinter("Subject was null")
-    getFromTrustStore(issuerCertificateHash) != null -> if (Util.digestForSignature(this).verifySign(
+    else -> {
+      val trustedBy = when {
+        getFromTrustStore(issuerCertificateHash) != null -> issuerCertificateHash
+        getFromTrustStore(hash) != null -> hash
+        else -> ByteString.EMPTY
+      }
+      val cached = VerifiedCertificateCache.lookup(hash, trustedBy, now)
+      val error = if (cached != null) cached.error else checkIssuerSignature(hash, getFromTrustStore).also {
+        VerifiedCertificateCache.remember(hash, trustedBy, it, validFrom + validLength, now)
+      }
+      if (error == null) return true else errorPrinter(error)
+    }
+  }
+  return false
+}
+
+// Null if the certificate was signed by a trusted issuer (or is itself trusted and self-signed), otherwise why not
+private fun Dcrl.Certificate.checkIssuerSignature(
+  hash: ByteString,
+  getFromTrustStore: (ByteString) -> Dcrl.Certificate?
+): String? {
+  val issuer = getFromTrustStore(issuerCertificateHash)
+  return when {
+    issuer != null -> if (CryptoEngine.verifyCertificate(
+        this,
         issuerSignature.toByteArray(),
-        getFromTrustStore(issuerCertificateHash)!!.signingPublicKey.toByteArray()
+        issuer.signingPublicKey.toByteArray()
       )
-    ) return true else errorPrinter("Had issuer but verification of their signature failed")
-    getFromTrustStore(Util.hashCert(this)) != null -> if (Util.digestForSignature(this).verifySign(
+    ) null else "Had issuer but verification of their signature failed"
+    getFromTrustStore(hash) != null -> if (CryptoEngine.verifyCertificate(
+        this,
         issuerSignature.toByteArray(),
         signingPublicKey.toByteArray()
       )
-    ) return true else errorPrinter("Cert was self signed but the verification of the signature failed")
-    else -> errorPrinter(
-      "The cert ${Util.hashCert(this)
-        .joinToString()} wasn't trusted and neither was its issuer ${issuerCertificateHash.toByteArray()
-        .joinToString()}"
-    )
+    ) null else "Cert was self signed but the verification of the signature failed"
+    else -> "The cert ${hash.toByteArray().joinToString()} wasn't trusted and neither was its issuer " +
+        issuerCertificateHash.toByteArray().joinToString()
   }
-  return false
 }
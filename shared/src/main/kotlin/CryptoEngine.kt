@@ -0,0 +1,144 @@
+import com.google.protobuf.CodedOutputStream
+import com.google.protobuf.MessageLite
+import com.goterl.lazycode.lazysodium.LazySodiumJava
+import com.goterl.lazycode.lazysodium.SodiumJava
+import com.goterl.lazycode.lazysodium.interfaces.Sign
+import com.sun.jna.Pointer
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+// Every signature in the protocol is Ed25519ph (libsodium's multi-part crypto_sign_init/update/final). There's one
+// sodium binding for the whole process, loaded the first time this is used, and each thread reuses its own signing
+// state and scratch buffer, so a signature costs the hashing and the curve operation and nothing else.
+//
+// Input can be a whole array, a range of one, the remaining bytes of a [ByteBuffer] (which is left as it was) or a
+// protobuf message, which is fed to sodium as it's serialized instead of being copied into a new array first. Since
+// the hash only sees the concatenated bytes, each of these signs exactly what `toByteArray()` would have. Certificates
+// are signed over their [Util.digestForSignature], which [CanonicalEncoder] writes in the same way.
+object CryptoEngine {
+  // How much input is copied at a time when it can't be handed to sodium as-is, and the biggest message that's
+  // serialized in one go
+  private const val SCRATCH_BYTES = 16 * 1024
+
+  private val sodium: Sign.Native = LazySodiumJava(SodiumJava())
+
+  private val threadState = ThreadLocal.withInitial { ThreadState() }
+
+  @JvmStatic
+  fun sign(input: ByteArray, secretKey: ByteArray): ByteArray = sign(input, 0, input.size, secretKey)
+
+  @JvmStatic
+  fun sign(input: ByteArray, offset: Int, length: Int, secretKey: ByteArray): ByteArray =
+    signing(secretKey) { update(input, offset, length) }
+
+  @JvmStatic
+  fun sign(input: ByteBuffer, secretKey: ByteArray): ByteArray = signing(secretKey) { update(input) }
+
+  @JvmStatic
+  fun sign(message: MessageLite, secretKey: ByteArray): ByteArray = signing(secretKey) { update(message) }
+
+  // Signs the certificate's [Util.digestForSignature], written straight into the signing state
+  @JvmStatic
+  fun signCertificate(cert: Dcrl.CertificateOrBuilder, secretKey: ByteArray): ByteArray =
+    signing(secretKey) { update(cert) }
+
+  @JvmStatic
+  fun verify(input: ByteArray, signature: ByteArray, publicKey: ByteArray): Boolean =
+    verify(input, 0, input.size, signature, publicKey)
+
+  @JvmStatic
+  fun verify(input: ByteArray, offset: Int, length: Int, signature: ByteArray, publicKey: ByteArray): Boolean =
+    verifying(signature, publicKey) { update(input, offset, length) }
+
+  @JvmStatic
+  fun verify(input: ByteBuffer, signature: ByteArray, publicKey: ByteArray): Boolean =
+    verifying(signature, publicKey) { update(input) }
+
+  @JvmStatic
+  fun verify(message: MessageLite, signature: ByteArray, publicKey: ByteArray): Boolean =
+    verifying(signature, publicKey) { update(message) }
+
+  @JvmStatic
+  fun verifyCertificate(cert: Dcrl.CertificateOrBuilder, signature: ByteArray, publicKey: ByteArray): Boolean =
+    verifying(signature, publicKey) { update(cert) }
+
+  private inline fun signing(secretKey: ByteArray, feed: ThreadState.() -> Unit): ByteArray {
+    require(secretKey.size == Sign.SECRETKEYBYTES) { "Signing keys are ${Sign.SECRETKEYBYTES} bytes, not ${secretKey.size}" }
+    return threadState.get().run {
+      sodium.cryptoSignInit(state)
+      feed()
+      ByteArray(Sign.BYTES).also {
+        check(sodium.cryptoSignFinalCreate(state, it, Pointer.NULL, secretKey)) { "libsodium failed to sign" }
+      }
+    }
+  }
+
+  // Keys and signatures come off the wire, so ones of the wrong size just fail to verify
+  private inline fun verifying(signature: ByteArray, publicKey: ByteArray, feed: ThreadState.() -> Unit): Boolean {
+    if (signature.size != Sign.BYTES || publicKey.size != Sign.PUBLICKEYBYTES) return false
+    return threadState.get().run {
+      sodium.cryptoSignInit(state)
+      feed()
+      sodium.cryptoSignFinalVerify(state, signature, publicKey)
+    }
+  }
+
+  private class ThreadState {
+    val state = Sign.StateCryptoSign()
+    private val scratch = ByteArray(SCRATCH_BYTES)
+
+    // What a message serializes into when it's too big for the scratch buffer
+    private val updateStream = object : OutputStream() {
+      override fun write(b: Int) {
+        scratch[0] = b.toByte()
+        sodium.cryptoSignUpdate(state, scratch, 1)
+      }
+
+      override fun write(b: ByteArray, off: Int, len: Int) = update(b, off, len)
+    }
+
+    // Sodium only takes arrays from their start, so anything else goes through the scratch buffer
+    fun update(input: ByteArray, offset: Int, length: Int) {
+      if (offset == 0) {
+        sodium.cryptoSignUpdate(state, input, length.toLong())
+        return
+      }
+      var done = 0
+      while (done < length) {
+        val chunk = minOf(SCRATCH_BYTES, length - done)
+        System.arraycopy(input, offset + done, scratch, 0, chunk)
+        sodium.cryptoSignUpdate(state, scratch, chunk.toLong())
+        done += chunk
+      }
+    }
+
+    fun update(input: ByteBuffer) {
+      if (input.hasArray()) return update(input.array(), input.arrayOffset() + input.position(), input.remaining())
+      val start = input.position()
+      while (input.hasRemaining()) {
+        val chunk = minOf(SCRATCH_BYTES, input.remaining())
+        input.get(scratch, 0, chunk)
+        sodium.cryptoSignUpdate(state, scratch, chunk.toLong())
+      }
+      input.position(start)
+    }
+
+    fun update(cert: Dcrl.CertificateOrBuilder) = CanonicalEncoder.writeDigestForSignature(cert, updateStream)
+
+    fun update(message: MessageLite) {
+      val size = message.serializedSize
+      if (size <= SCRATCH_BYTES) {
+        CodedOutputStream.newInstance(scratch, 0, size).run {
+          message.writeTo(this)
+          checkNoSpaceLeft()
+        }
+        sodium.cryptoSignUpdate(state, scratch, size.toLong())
+      } else {
+        CodedOutputStream.newInstance(updateStream, SCRATCH_BYTES).run {
+          message.writeTo(this)
+          flush()
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,37 @@
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+// A process-wide pool of direct buffers, kept in power-of-two size classes so that a buffer handed back can serve any
+// later request of the same class. Requests bigger than the largest class get a one-off buffer that isn't pooled.
+object DirectBufferPool {
+  private const val MIN_SHIFT = 12 // 4 KiB
+  private const val MAX_SHIFT = 24 // 16 MiB
+
+  // Each class keeps at most this many bytes' worth of idle buffers (but always at least one buffer)
+  private const val MAX_IDLE_BYTES_PER_CLASS = 8 shl 20
+
+  private val idle = Array(MAX_SHIFT - MIN_SHIFT + 1) { ConcurrentLinkedQueue<ByteBuffer>() }
+  private val idleCounts = AtomicIntegerArray(idle.size)
+
+  // Returns a cleared buffer with at least [minCapacity] bytes of capacity. Hand it back with [release] when done.
+  fun acquire(minCapacity: Int): ByteBuffer {
+    val sizeClass = sizeClassOf(minCapacity)
+    if (sizeClass >= idle.size) return ByteBuffer.allocateDirect(minCapacity)
+    return idle[sizeClass].poll()?.also { idleCounts.decrementAndGet(sizeClass) }?.apply { clear() }
+      ?: ByteBuffer.allocateDirect(1 shl (sizeClass + MIN_SHIFT))
+  }
+
+  // Gives a buffer from [acquire] back to the pool. The caller must not touch it afterwards.
+  fun release(buffer: ByteBuffer) {
+    val sizeClass = sizeClassOf(buffer.capacity())
+    if (sizeClass >= idle.size || buffer.capacity() != 1 shl (sizeClass + MIN_SHIFT)) return
+    if (idleCounts.incrementAndGet(sizeClass) > maxIdle(sizeClass)) idleCounts.decrementAndGet(sizeClass)
+    else idle[sizeClass].offer(buffer)
+  }
+
+  private fun sizeClassOf(capacity: Int) =
+    if (capacity <= 1 shl MIN_SHIFT) 0 else 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT
+
+  private fun maxIdle(sizeClass: Int) = maxOf(1, MAX_IDLE_BYTES_PER_CLASS shr (sizeClass + MIN_SHIFT))
+}
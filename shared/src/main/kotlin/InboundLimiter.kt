@@ -0,0 +1,113 @@
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+// What kind of work an inbound message asks of us. The order here is also the order the state machine prefers when
+// more than one kind is waiting: new blocks first, bulk chain transfers last.
+enum class TrafficClass(
+  // Sustained messages per second allowed from a single connection, infinite for no limit
+  val ratePerSecond: Double,
+  // How many can arrive at once before the rate starts to apply
+  val burst: Int,
+  // Whether messages are turned away while the state machine is backed up with them, rather than just pushing back on
+  // the socket
+  val shedWhenBusy: Boolean
+) {
+  BLOCK_PROPAGATION(200.0, 400, false),
+  REVOCATION(100.0, 200, false),
+  CONTROL(50.0, 100, false),
+  // Replies to what we asked for (chains, ranges, headers, fork points, proofs), while the peer still owes us an answer
+  // (see [PendingRequests]). How many of those arrive is up to us, so they aren't rate limited, and a reply to a sync
+  // we started is never turned away
+  REPLY(Double.POSITIVE_INFINITY, 0, false),
+  // Each BlockRangeRequest or HeadersRequest is answered with at most one bounded chunk of the chain, and a node
+  // catching up asks for the next one as soon as the last arrives. A ForkLocatorRequest starts each sync
+  SYNC(20.0, 40, true),
+  // Replies nobody asked for. The handlers drop them, but only after their signature has been checked
+  UNASKED_REPLY(5.0, 10, true),
+  // Every BlockchainRequest makes us build, serialize and sign the entire chain
+  BULK(0.2, 2, true);
+
+  companion object {
+    fun of(message: Dcrl.DCRLMessage): TrafficClass = when (message.messageCase) {
+      Dcrl.DCRLMessage.MessageCase.UNSIGNED_MESSAGE -> when (message.unsignedMessage.messageCase) {
+        Dcrl.UnsignedMessage.MessageCase.BLOCKCHAIN_REQUEST -> BULK
+        Dcrl.UnsignedMessage.MessageCase.BLOCK_RANGE_REQUEST,
+        Dcrl.UnsignedMessage.MessageCase.HEADERS_REQUEST,
+        Dcrl.UnsignedMessage.MessageCase.FORK_LOCATOR_REQUEST -> SYNC
+        else -> CONTROL
+      }
+      Dcrl.DCRLMessage.MessageCase.SIGNED_MESSAGE -> when (message.signedMessage.messageCase) {
+        Dcrl.SignedMessage.MessageCase.BLOCK_MESSAGE, Dcrl.SignedMessage.MessageCase.BLOCK_RESPONSE -> BLOCK_PROPAGATION
+        Dcrl.SignedMessage.MessageCase.CERTIFICATE_REVOCATION -> REVOCATION
+        Dcrl.SignedMessage.MessageCase.BLOCKCHAIN_RESPONSE,
+        Dcrl.SignedMessage.MessageCase.BLOCK_RANGE_RESPONSE,
+        Dcrl.SignedMessage.MessageCase.HEADERS_RESPONSE,
+        Dcrl.SignedMessage.MessageCase.FORK_LOCATOR_RESPONSE,
+        Dcrl.SignedMessage.MessageCase.REVOCATION_PROOF_RESPONSE -> REPLY
+        else -> CONTROL
+      }
+      else -> CONTROL
+    }
+
+    // Whether the message asks the peer for something that comes back as a [REPLY]
+    fun isRequest(message: Dcrl.DCRLMessage): Boolean =
+      message.messageCase == Dcrl.DCRLMessage.MessageCase.UNSIGNED_MESSAGE &&
+        when (message.unsignedMessage.messageCase) {
+          Dcrl.UnsignedMessage.MessageCase.BLOCKCHAIN_REQUEST,
+          Dcrl.UnsignedMessage.MessageCase.BLOCK_RANGE_REQUEST,
+          Dcrl.UnsignedMessage.MessageCase.HEADERS_REQUEST,
+          Dcrl.UnsignedMessage.MessageCase.FORK_LOCATOR_REQUEST,
+          Dcrl.UnsignedMessage.MessageCase.REVOCATION_PROOF_REQUEST -> true
+          else -> false
+        }
+  }
+}
+
+// How many requests (see [TrafficClass.isRequest]) each peer has yet to answer, so that a reply can be told apart
+// from one nobody asked for. Requests are counted as they're queued to send, and answers as they're read off the
+// peer's socket, so any thread can use it.
+class PendingRequests {
+  private val counts = ConcurrentHashMap<NetworkIdentity, AtomicInteger>()
+
+  fun sent(peer: NetworkIdentity) {
+    counts.computeIfAbsent(peer) { AtomicInteger() }.updateAndGet { minOf(it + 1, MAX_PENDING) }
+  }
+
+  // Counts off one request, returning false if the peer didn't owe us an answer
+  fun answered(peer: NetworkIdentity): Boolean = (counts[peer]?.getAndUpdate { maxOf(it - 1, 0) } ?: 0) > 0
+
+  fun forget(peer: NetworkIdentity) {
+    counts.remove(peer)
+  }
+
+  companion object {
+    // Requests a peer never answered (a sync can give up on it first) still count, up to this many
+    const val MAX_PENDING = 16
+  }
+}
+
+// Per-connection token buckets, one per [TrafficClass] that has a finite rate. Only the connection's own receive loop
+// uses it, so it isn't thread-safe.
+class InboundLimiter {
+  private val buckets = TrafficClass.values().map {
+    if (it.ratePerSecond.isInfinite()) null else TokenBucket(it.ratePerSecond, it.burst)
+  }
+
+  // Takes a token for the message's class, returning false if the connection is over budget for it
+  fun tryAcquire(trafficClass: TrafficClass): Boolean = buckets[trafficClass.ordinal]?.tryAcquire() ?: true
+
+  private class TokenBucket(ratePerSecond: Double, private val capacity: Int) {
+    private val tokensPerNano = ratePerSecond / 1_000_000_000
+    private var tokens = capacity.toDouble()
+    private var lastRefill = System.nanoTime()
+
+    fun tryAcquire(): Boolean {
+      val now = System.nanoTime()
+      tokens = minOf(capacity.toDouble(), tokens + (now - lastRefill) * tokensPerNano)
+      lastRefill = now
+      if (tokens < 1) return false
+      tokens -= 1
+      return true
+    }
+  }
+}
@@ -0,0 +1,110 @@
+import java.time.Instant
+import java.time.ZoneId
+import java.time.format.DateTimeFormatter
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+// Logging for everything in the shared module. Callers hand over a lambda that builds the message, and it only runs
+// if that level is enabled, so a disabled statement costs a single comparison. Enabled records go into a bounded ring
+// buffer that a background thread formats and prints; if it fills up, records are dropped (and counted) rather than
+// making the caller wait on stdout.
+//
+// From Java: `Log.debug(() -> "Got " + thing)`.
+object Log {
+  enum class Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+  private const val RING_CAPACITY = 8192
+
+  private val configuredLevel: String? = System.getProperty("dcrl.log.level")
+  private val parsedLevel = configuredLevel?.let { name -> Level.values().find { it.name == name.toUpperCase() } }
+
+  // The lowest level that gets written. Set with -Ddcrl.log.level=DEBUG (or change it at runtime). A name that isn't
+  // one of the levels falls back to INFO, with a warning.
+  @JvmStatic
+  @Volatile
+  var threshold: Level = parsedLevel ?: Level.INFO
+
+  private class Record(
+    val level: Level,
+    val time: Long,
+    val thread: String,
+    val message: String,
+    val error: Throwable?
+  )
+
+  private val ring = ArrayBlockingQueue<Record>(RING_CAPACITY)
+  private val dropped = AtomicLong()
+  private val timeFormat = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault())
+
+  init {
+    thread(isDaemon = true, name = "dcrl-log") {
+      while (true) printRecord(ring.take())
+    }
+    // Don't lose whatever was still waiting when the process exits
+    Runtime.getRuntime().addShutdownHook(thread(start = false) {
+      while (true) printRecord(ring.poll() ?: break)
+    })
+    if (configuredLevel != null && parsedLevel == null)
+      warn { "Unknown log level \"$configuredLevel\" in dcrl.log.level, logging at INFO" }
+  }
+
+  // How many records have been thrown away because the ring buffer was full
+  @JvmStatic
+  val droppedCount: Long
+    get() = dropped.get()
+
+  @JvmStatic
+  fun isEnabled(level: Level): Boolean = level != Level.OFF && level >= threshold
+
+  // Queues an already-built message. Prefer the lambda versions below, which skip building it if it won't be written.
+  @JvmStatic
+  @JvmOverloads
+  fun write(level: Level, message: String, error: Throwable? = null) {
+    if (!ring.offer(Record(level, System.currentTimeMillis(), Thread.currentThread().name, message, error)))
+      dropped.incrementAndGet()
+  }
+
+  @JvmStatic
+  inline fun trace(message: () -> String) {
+    if (isEnabled(Level.TRACE)) write(Level.TRACE, message())
+  }
+
+  @JvmStatic
+  inline fun debug(message: () -> String) {
+    if (isEnabled(Level.DEBUG)) write(Level.DEBUG, message())
+  }
+
+  @JvmStatic
+  inline fun info(message: () -> String) {
+    if (isEnabled(Level.INFO)) write(Level.INFO, message())
+  }
+
+  @JvmStatic
+  inline fun warn(message: () -> String) {
+    if (isEnabled(Level.WARN)) write(Level.WARN, message())
+  }
+
+  @JvmStatic
+  inline fun warn(error: Throwable, message: () -> String) {
+    if (isEnabled(Level.WARN)) write(Level.WARN, message(), error)
+  }
+
+  @JvmStatic
+  inline fun error(message: () -> String) {
+    if (isEnabled(Level.ERROR)) write(Level.ERROR, message())
+  }
+
+  @JvmStatic
+  inline fun error(error: Throwable, message: () -> String) {
+    if (isEnabled(Level.ERROR)) write(Level.ERROR, message(), error)
+  }
+
+  private fun printRecord(record: Record) {
+    val stream = if (record.level >= Level.WARN) System.err else System.out
+    stream.println(
+      "${timeFormat.format(Instant.ofEpochMilli(record.time))} ${record.level.name.padEnd(5)} [${record.thread}] ${record.message}"
+    )
+    record.error?.printStackTrace(stream)
+  }
+}
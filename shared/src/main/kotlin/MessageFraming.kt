@@ -0,0 +1,75 @@
+import com.google.protobuf.CodedInputStream
+import com.google.protobuf.CodedOutputStream
+import io.ktor.utils.io.ByteReadChannel
+import io.ktor.utils.io.ByteWriteChannel
+import java.io.IOException
+import java.nio.ByteBuffer
+
+// Length-delimited framing of [Dcrl.DCRLMessage]s (the same format as [writeDelimitedTo]/[parseDelimitedFrom]),
+// working directly between the socket channels and pooled direct buffers. Protobuf parses from and serializes into
+// those buffers itself, so a frame is never copied into an intermediate byte array on the way in or out.
+object MessageFraming {
+  // Frames bigger than this are treated as a broken or hostile peer rather than allocated for
+  const val MAX_FRAME_BYTES = 256 shl 20
+
+  // Suspends until a whole frame has arrived and returns the message in it
+  suspend fun readMessage(channel: ByteReadChannel): Dcrl.DCRLMessage {
+    val length = readVarint32(channel)
+    if (length > MAX_FRAME_BYTES) throw IOException("Refusing a $length byte frame")
+    val buffer = DirectBufferPool.acquire(length)
+    try {
+      buffer.limit(length)
+      while (buffer.hasRemaining()) channel.readFully(buffer)
+      buffer.flip()
+      return Dcrl.DCRLMessage.parseFrom(CodedInputStream.newInstance(buffer))
+    } finally {
+      DirectBufferPool.release(buffer)
+    }
+  }
+
+  // Bytes needed to frame the message, including the length prefix
+  fun frameSize(message: Dcrl.DCRLMessage): Int =
+    message.serializedSize.let { CodedOutputStream.computeUInt32SizeNoTag(it) + it }
+
+  // Appends one frame to the output. The output must have [frameSize] bytes of space left.
+  fun writeFrame(message: Dcrl.DCRLMessage, output: CodedOutputStream) {
+    output.writeUInt32NoTag(message.serializedSize)
+    message.writeTo(output)
+  }
+
+  // Writes the flipped buffer to the channel and flushes it
+  suspend fun send(buffer: ByteBuffer, channel: ByteWriteChannel) {
+    channel.writeFully(buffer)
+    channel.flush()
+  }
+
+  // Reads the varint length prefix one byte at a time. Protobuf always writes the prefix as a 32-bit varint, but
+  // readers are expected to tolerate (and discard) up to ten bytes of it.
+  private suspend fun readVarint32(channel: ByteReadChannel): Int {
+    var result = 0
+    for (shift in 0 until 64 step 7) {
+      val byte = channel.readByte().toInt()
+      if (shift < 32) result = result or ((byte and 0x7f) shl shift)
+      if (byte and 0x80 == 0) {
+        if (result < 0) throw IOException("Negative frame length $result")
+        return result
+      }
+    }
+    throw IOException("Malformed frame length")
+  }
+}
+
+// A message serialized (and framed) once, so the same bytes can be queued for any number of peers
+class EncodedFrame(val message: Dcrl.DCRLMessage) {
+  private val bytes = ByteArray(MessageFraming.frameSize(message)).also {
+    CodedOutputStream.newInstance(it).run {
+      MessageFraming.writeFrame(message, this)
+      checkNoSpaceLeft()
+    }
+  }
+
+  val size: Int
+    get() = bytes.size
+
+  fun writeTo(output: CodedOutputStream) = output.writeRawBytes(bytes)
+}
@@ -0,0 +1,152 @@
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import java.util.function.LongSupplier
+import java.util.function.Supplier
+
+// Process-wide instrumentation, rendered in the Prometheus text format by [render] (the web interfaces serve it at
+// /metrics). Recording never allocates or takes a lock: counters and histogram buckets are [LongAdder]s, which stripe
+// their cells across threads under contention, kept in arrays indexed by message type. Gauges are only read when
+// rendering.
+object Metrics {
+  // Per-type counters and handler latency for one of the message oneofs, indexed by the enum's ordinal
+  class MessageTypeMetrics<E : Enum<E>>(internal val kind: String, types: Array<E>) {
+    internal val typeNames = types.map { it.name }
+    internal val receivedCounts = Array(types.size) { LongAdder() }
+    internal val handledCounts = Array(types.size) { LongAdder() }
+    internal val rejectedCounts = Array(types.size) { LongAdder() }
+    internal val handlerLatency = Array(types.size) { Histogram() }
+
+    fun received(type: E) = receivedCounts[type.ordinal].increment()
+
+    fun handled(type: E, nanos: Long) {
+      handledCounts[type.ordinal].increment()
+      handlerLatency[type.ordinal].record(nanos)
+    }
+
+    fun rejected(type: E) = rejectedCounts[type.ordinal].increment()
+  }
+
+  // Cumulative-bucket latency histogram with fixed bounds from 10 microseconds to 10 seconds
+  class Histogram {
+    private val buckets = Array(BOUNDS_NANOS.size + 1) { LongAdder() }
+    private val sumNanos = LongAdder()
+
+    fun record(nanos: Long) {
+      var bucket = 0
+      while (bucket < BOUNDS_NANOS.size && nanos > BOUNDS_NANOS[bucket]) bucket++
+      buckets[bucket].increment()
+      sumNanos.add(nanos)
+    }
+
+    internal fun render(name: String, labels: String, out: StringBuilder) {
+      val prefix = if (labels.isEmpty()) "" else "$labels,"
+      val suffix = if (labels.isEmpty()) "" else "{$labels}"
+      var cumulative = 0L
+      BOUNDS_NANOS.forEachIndexed { i, bound ->
+        cumulative += buckets[i].sum()
+        out.append("${name}_bucket{${prefix}le=\"${bound / 1e9}\"} $cumulative\n")
+      }
+      cumulative += buckets[BOUNDS_NANOS.size].sum()
+      out.append("${name}_bucket{${prefix}le=\"+Inf\"} $cumulative\n")
+      out.append("${name}_sum$suffix ${sumNanos.sum() / 1e9}\n")
+      out.append("${name}_count$suffix $cumulative\n")
+    }
+
+    private companion object {
+      val BOUNDS_NANOS = longArrayOf(
+        10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+        1_000_000, 2_500_000, 5_000_000, 10_000_000
+      ).map { TimeUnit.MICROSECONDS.toNanos(it) }.toLongArray()
+    }
+  }
+
+  @JvmField
+  val signed = MessageTypeMetrics("signed", Dcrl.SignedMessage.MessageCase.values())
+
+  @JvmField
+  val unsigned = MessageTypeMetrics("unsigned", Dcrl.UnsignedMessage.MessageCase.values())
+
+  // Time spent checking the signature of a whole signed message
+  @JvmField
+  val signatureVerify = Histogram()
+
+  private val counters = ConcurrentHashMap<String, Pair<String, LongSupplier>>()
+  private val gauges = ConcurrentHashMap<String, Pair<String, LongSupplier>>()
+  private val labelledGauges = ConcurrentHashMap<String, Triple<String, String, Supplier<Map<String, Long>>>>()
+
+  // Registers (or replaces) a counter kept somewhere else, whose running total is read whenever the metrics are
+  // rendered. It should only ever go up.
+  @JvmStatic
+  fun counter(name: String, help: String, total: LongSupplier) {
+    counters[name] = help to total
+  }
+
+  // Registers (or replaces) a gauge that's read whenever the metrics are rendered
+  @JvmStatic
+  fun gauge(name: String, help: String, value: LongSupplier) {
+    gauges[name] = help to value
+  }
+
+  // Registers (or replaces) a gauge with one series per key of the supplied map, each labelled [label]="key"
+  @JvmStatic
+  fun labelledGauge(name: String, help: String, label: String, values: Supplier<Map<String, Long>>) {
+    labelledGauges[name] = Triple(help, label, values)
+  }
+
+  fun received(message: Dcrl.DCRLMessage) = forType(message, signed::received, unsigned::received)
+
+  fun rejected(message: Dcrl.DCRLMessage) = forType(message, signed::rejected, unsigned::rejected)
+
+  fun handled(message: Dcrl.DCRLMessage, nanos: Long) =
+    forType(message, { signed.handled(it, nanos) }, { unsigned.handled(it, nanos) })
+
+  private inline fun forType(
+    message: Dcrl.DCRLMessage,
+    ifSigned: (Dcrl.SignedMessage.MessageCase) -> Unit,
+    ifUnsigned: (Dcrl.UnsignedMessage.MessageCase) -> Unit
+  ) = when (message.messageCase) {
+    Dcrl.DCRLMessage.MessageCase.SIGNED_MESSAGE -> ifSigned(message.signedMessage.messageCase)
+    Dcrl.DCRLMessage.MessageCase.UNSIGNED_MESSAGE -> ifUnsigned(message.unsignedMessage.messageCase)
+    else -> Unit
+  }
+
+  // Everything, in the Prometheus text exposition format
+  fun render(): String = StringBuilder().also { out ->
+    val byType = listOf(signed, unsigned)
+    fun counter(name: String, help: String, counts: (MessageTypeMetrics<*>) -> Array<LongAdder>) {
+      out.append("# HELP $name $help\n# TYPE $name counter\n")
+      byType.forEach { metrics ->
+        counts(metrics).forEachIndexed { i, count ->
+          out.append("$name{kind=\"${metrics.kind}\",type=\"${metrics.typeNames[i]}\"} ${count.sum()}\n")
+        }
+      }
+    }
+    counter("dcrl_messages_received_total", "Messages read off of sockets") { it.receivedCounts }
+    counter("dcrl_messages_handled_total", "Messages handled successfully by the state machine") { it.handledCounts }
+    counter("dcrl_messages_rejected_total", "Messages turned away or answered with an error") { it.rejectedCounts }
+
+    out.append("# HELP dcrl_handler_seconds Time spent in the state machine's handler\n")
+    out.append("# TYPE dcrl_handler_seconds histogram\n")
+    byType.forEach { metrics ->
+      metrics.handlerLatency.forEachIndexed { i, histogram ->
+        histogram.render("dcrl_handler_seconds", "kind=\"${metrics.kind}\",type=\"${metrics.typeNames[i]}\"", out)
+      }
+    }
+
+    out.append("# HELP dcrl_signature_verify_seconds Time spent checking signed messages' signatures\n")
+    out.append("# TYPE dcrl_signature_verify_seconds histogram\n")
+    signatureVerify.render("dcrl_signature_verify_seconds", "", out)
+
+    counters.toSortedMap().forEach { (name, counter) ->
+      out.append("# HELP $name ${counter.first}\n# TYPE $name counter\n$name ${counter.second.asLong}\n")
+    }
+    gauges.toSortedMap().forEach { (name, gauge) ->
+      out.append("# HELP $name ${gauge.first}\n# TYPE $name gauge\n$name ${gauge.second.asLong}\n")
+    }
+    labelledGauges.toSortedMap().forEach { (name, gauge) ->
+      out.append("# HELP $name ${gauge.first}\n# TYPE $name gauge\n")
+      gauge.third.get().forEach { (key, value) -> out.append("$name{${gauge.second}=\"$key\"} $value\n") }
+    }
+  }.toString()
+}
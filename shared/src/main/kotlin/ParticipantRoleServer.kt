@@ -20,7 +20,6 @@ open class ParticipantRoleServer(
         Dcrl.Announce.newBuilder().apply {
           nonce = Random.nextLong()
         }.build().let {
-          println("Preparing to announce self")
           announce = it
           signature = Util.sign(it, selfPrivateKey)
         }
@@ -28,10 +27,10 @@ open class ParticipantRoleServer(
     }.build().let { message ->
       otherParticipantsAndAuthorities.forEach {
         sendMessageToIdentity(it, message)
-        println("Sent announce to $it")
+        Log.debug { "Sent announce to $it" }
       }
     }
-    println("Started")
+    Log.info { "Started" }
   }
 
   override fun handleMessage(
@@ -43,7 +42,7 @@ open class ParticipantRoleServer(
       if (!message.certificate.verifyVerbose(
           { errorCollector.append(it) },
           trustStore::get,
-          currentRevokedList::containsKey,
+          currentRevokedList::contains,
           Dcrl.CertificateUsage.PARTICIPATION
         )
       )
@@ -62,7 +61,7 @@ open class ParticipantRoleServer(
     from: Dcrl.Certificate
   ): Dcrl.DCRLMessage? {
     otherParticipantsAndAuthorities.add(identity)
-    println("Hello new participant or authority at $identity (now have ${otherParticipantsAndAuthorities.size})")
+    Log.info { "Hello new participant or authority at $identity (now have ${otherParticipantsAndAuthorities.size})" }
     return null
   }
 
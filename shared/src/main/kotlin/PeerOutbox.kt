@@ -0,0 +1,88 @@
+import com.google.protobuf.CodedOutputStream
+import io.ktor.utils.io.ByteWriteChannel
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+// The outgoing messages for a single peer. Anyone can [offer] a message without blocking; a single writer coroutine
+// (see [drainTo]) owns the socket's write channel, packs whatever has queued up into one buffer and flushes once per
+// batch. A peer that stops reading fills its own queue and starts dropping messages instead of stalling the sender.
+class PeerOutbox(capacity: Int = DEFAULT_CAPACITY) {
+  // Holds [Dcrl.DCRLMessage]s and [EncodedFrame]s
+  private val queue = Channel<Any>(capacity)
+  private val depth = AtomicInteger()
+  private val dropped = AtomicLong()
+
+  // How many messages are waiting to be written
+  val queueDepth: Int
+    get() = depth.get()
+
+  // How many messages have been thrown away because the queue was full or the peer had gone away
+  val droppedCount: Long
+    get() = dropped.get()
+
+  // Queues the message for the writer, returning false (and counting a drop) if it couldn't be accepted
+  fun offer(message: Dcrl.DCRLMessage): Boolean = offerItem(message)
+
+  // Queues an already-encoded frame, which may be shared with other peers' outboxes
+  fun offer(frame: EncodedFrame): Boolean = offerItem(frame)
+
+  private fun offerItem(item: Any): Boolean =
+    try {
+      queue.offer(item)
+    } catch (e: ClosedSendChannelException) {
+      false
+    }.also { accepted -> if (accepted) depth.incrementAndGet() else dropped.incrementAndGet() }
+
+  // Writes queued messages to the channel until the outbox is closed. Each batch is as many messages as are already
+  // waiting (within the limits below), encoded as consecutive delimited frames straight into a pooled direct buffer
+  // and flushed together.
+  suspend fun drainTo(channel: ByteWriteChannel) {
+    val waiting = queue.iterator()
+    // A message that didn't fit in the previous batch, which starts the next one
+    var carried: Any? = null
+    while (true) {
+      val first = carried ?: if (waiting.hasNext()) waiting.next() else return
+      carried = null
+      val batch = DirectBufferPool.acquire(maxOf(MAX_BATCH_BYTES, frameSize(first)))
+      try {
+        val output = CodedOutputStream.newInstance(batch)
+        var next: Any? = first
+        var count = 0
+        while (next != null) {
+          if (count > 0 && frameSize(next) > output.spaceLeft()) {
+            carried = next
+            break
+          }
+          depth.decrementAndGet()
+          writeFrame(next, output)
+          if (++count >= MAX_BATCH_MESSAGES) break
+          next = queue.poll()
+        }
+        output.flush()
+        batch.flip()
+        MessageFraming.send(batch, channel)
+      } finally {
+        DirectBufferPool.release(batch)
+      }
+    }
+  }
+
+  private fun frameSize(item: Any): Int =
+    if (item is EncodedFrame) item.size else MessageFraming.frameSize(item as Dcrl.DCRLMessage)
+
+  private fun writeFrame(item: Any, output: CodedOutputStream) =
+    if (item is EncodedFrame) item.writeTo(output) else MessageFraming.writeFrame(item as Dcrl.DCRLMessage, output)
+
+  // Stops accepting messages; the writer finishes what's queued and then returns
+  fun close() {
+    queue.close()
+  }
+
+  companion object {
+    const val DEFAULT_CAPACITY = 1024
+    const val MAX_BATCH_MESSAGES = 64
+    const val MAX_BATCH_BYTES = 64 * 1024
+  }
+}
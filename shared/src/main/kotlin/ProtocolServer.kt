@@ -3,10 +3,15 @@ import com.google.protobuf.ByteString
 import com.google.protobuf.Message
 import io.ktor.network.sockets.isClosed
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.selects.select
 import org.apache.commons.codec.binary.Base64
 import java.io.File
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+import java.util.function.LongSupplier
+import java.util.function.Supplier
 import kotlin.time.seconds
 
 abstract class ProtocolServer(val otherServers: MutableMap<NetworkIdentity, SocketTuple>, trustStorePath: File) {
@@ -14,11 +19,60 @@ abstract class ProtocolServer(val otherServers: MutableMap<NetworkIdentity, Sock
     hashCert(it) to it
   }.toMap()
 
-  val toSendTo = ConcurrentHashMap<NetworkIdentity, ConcurrentLinkedQueue<Dcrl.DCRLMessage>>()
+  // Outgoing messages per peer, each drained by that peer's writer coroutine in [babysitSocket]
+  val toSendTo = ConcurrentHashMap<NetworkIdentity, PeerOutbox>()
 
-  protected val currentRevokedList = HashMap<ByteString, Dcrl.Certificate>()
+  // Only ever changed by the state machine (see [runStateMachine]), but read by the web interface's threads too
+  protected val currentRevokedList = RevokedSet()
+
+  // The whole message the state machine is currently handling, for handlers that need more than the part they were
+  // given (like relaying a signed block as-is). Only meaningful on the state machine.
+  protected var messageBeingHandled: Dcrl.DCRLMessage? = null
+    private set
+
+  // Messages whose signatures have already been checked, waiting for the state machine, with one queue per
+  // [TrafficClass] (in the same order). Each connection has at most one message in these at a time (see
+  // [babysitSocket]), so they're only as long as the number of connections.
+  private val verifiedMessages = TrafficClass.values().map { Channel<VerifiedMessage>(Channel.UNLIMITED) }
+
+  // How many messages of each [TrafficClass] have been let in from all connections and not handled yet
+  private val backlog = TrafficClass.values().map { AtomicInteger() }
+
+  // Requests each peer has yet to answer: only a reply to one of those gets [TrafficClass.REPLY]'s free pass
+  private val pendingRequests = PendingRequests()
+
+  // Work from outside the socket handling (like the web interface) that needs to touch protocol state
+  private val localTasks = Channel<Runnable>(Channel.UNLIMITED)
+
+  init {
+    Metrics.gauge("dcrl_revoked_certificates", "Certificates in the current revoked set", LongSupplier {
+      currentRevokedList.size().toLong()
+    })
+    Metrics.gauge("dcrl_revoked_table_bytes", "Bytes taken by the revoked set's hash table", LongSupplier {
+      currentRevokedList.footprintBytes()
+    })
+    Metrics.labelledGauge("dcrl_peer_queue_depth", "Messages waiting to be written to each peer", "peer", Supplier {
+      toSendTo.mapKeys { "${it.key.ipAddress}:${it.key.portNumber}" }.mapValues { it.value.queueDepth.toLong() }
+    })
+    Metrics.labelledGauge("dcrl_peer_dropped_total", "Messages dropped for each peer", "peer", Supplier {
+      toSendTo.mapKeys { "${it.key.ipAddress}:${it.key.portNumber}" }.mapValues { it.value.droppedCount }
+    })
+    Metrics.gauge("dcrl_log_dropped_total", "Log records dropped because the log buffer was full", LongSupplier {
+      Log.droppedCount
+    })
+  }
 
   companion object {
+    // How many messages of a [TrafficClass] that sheds load can be let in, from all connections together, before more
+    // are turned away
+    const val STATE_MACHINE_CAPACITY = 256
+
+    // How many messages from a single socket can be having their signatures checked at once
+    const val VERIFY_PIPELINE_DEPTH = 16
+
+    // How often [tick] runs
+    const val TICK_MILLIS = 1000L
+
     fun readTrustStore(dir: File): List<Dcrl.Certificate> {
       return dir.walk().map {
         var cert: Dcrl.Certificate? = null;
@@ -26,10 +80,10 @@ abstract class ProtocolServer(val otherServers: MutableMap<NetworkIdentity, Sock
           try {
             cert = Dcrl.Certificate.parseFrom(it.readBytes())
           } catch (e: Exception) {
-            System.err.println("Failed to parse ${it.absolutePath}, ignoring")
+            Log.warn { "Failed to parse ${it.absolutePath}, ignoring" }
           }
         } else {
-          System.err.println("Ignoring ${it.absolutePath} because it is not a file.")
+          Log.debug { "Ignoring ${it.absolutePath} because it is not a file." }
         }
         cert
       }.filterNotNull().toList()
@@ -44,45 +98,235 @@ abstract class ProtocolServer(val otherServers: MutableMap<NetworkIdentity, Sock
     return
   }
 
-  // Helper function to send some message to some identity
-  fun sendMessageToIdentity(identity: NetworkIdentity, message: Dcrl.DCRLMessage): Unit {
-    otherServers[identity]?.let { socket ->
-      message.writeDelimitedTo(socket.outputStream)
-    } ?: println("Was asked to send a message to $identity but it didn't exist in the otherServers map!")
+  // Helper function to send some message to some identity. This only queues the message, so it never waits on the
+  // network; if the peer has too much queued already the message is dropped.
+  fun sendMessageToIdentity(identity: NetworkIdentity, message: Dcrl.DCRLMessage): Unit =
+    enqueue(identity, message) { it.offer(message) }
+
+  private inline fun enqueue(identity: NetworkIdentity, message: Dcrl.DCRLMessage, offer: (PeerOutbox) -> Boolean) {
+    if (otherServers[identity] == null)
+      Log.warn { "Was asked to send a message to $identity but it didn't exist in the otherServers map!" }
+    else if (!offer(toSendTo.computeIfAbsent(identity) { PeerOutbox() }))
+      Log.warn { "Dropped a ${message.messageCase} to $identity, its outgoing queue is full" }
+    else if (TrafficClass.isRequest(message))
+      pendingRequests.sent(identity)
   }
 
-  // This function is called by [runProtocolServer] to have a coroutine sit around and babysit a socket
-  fun babysitSocket(identity: NetworkIdentity, socket: SocketTuple) {
+  // Sends one message to many peers, serializing it only once. With a [fanout] of 0, or one at least as big as the
+  // number of candidates, every peer in [peers] gets it (besides [except]); otherwise that many are picked at random.
+  fun broadcast(
+    peers: Collection<NetworkIdentity>,
+    message: Dcrl.DCRLMessage,
+    fanout: Int = 0,
+    except: NetworkIdentity? = null
+  ) {
+    val candidates = peers.filter { it != except }
+    val chosen = if (fanout <= 0 || fanout >= candidates.size) candidates else candidates.shuffled().take(fanout)
+    if (chosen.isEmpty()) return
+    val frame = EncodedFrame(message)
+    chosen.forEach { identity -> enqueue(identity, message) { it.offer(frame) } }
+  }
+
+  // This function is called by [runProtocolServer] to have a coroutine sit around and babysit a socket. Receiving
+  // suspends on the socket's channel, so a quiet peer doesn't hold onto a thread and a message is handled as soon as
+  // its last byte arrives.
+  //
+  // Signature checks happen here, on [Dispatchers.Default], so messages from different peers (and consecutive
+  // messages from the same peer) are verified in parallel. The results are still handed to the state machine in the
+  // order the messages arrived on this socket: each one waits until the one before it has been handled, so a later
+  // message of a class the state machine prefers can't overtake an earlier one (a block can't overtake the header
+  // reply it depends on, say). The [TrafficClass]es only decide which connection goes next. A connection whose next
+  // message is still being verified or waiting its turn stops being read once [VERIFY_PIPELINE_DEPTH] messages are
+  // in flight, which pushes back on the peer.
+  //
+  // Before any of that, each message is charged against this connection's budget for its [TrafficClass]. A peer
+  // that goes over budget, or that asks for bulk work while the state machine is already backed up with it, gets an
+  // [Dcrl.ErrorMessage] back instead of having the work queued. A reply only counts as one if we sent the peer a
+  // request it hasn't answered yet (an error answers one too); otherwise it's charged as [TrafficClass.UNASKED_REPLY].
+  suspend fun babysitSocket(identity: NetworkIdentity, socket: SocketTuple): Unit = coroutineScope {
+    val outbox = toSendTo.computeIfAbsent(identity) { PeerOutbox() }
+    launch {
+      try {
+        outbox.drainTo(socket.writeChannel)
+      } catch (e: CancellationException) {
+        throw e
+      } catch (e: Throwable) {
+        // Closing the socket will make the receive loop below fail and clean up
+        Log.warn(e) { "Couldn't write to $identity" }
+        kotlin.runCatching { if (!socket.isClosed) socket.close() }
+      }
+    }
+    val beingVerified = Channel<Deferred<VerifiedMessage>>(VERIFY_PIPELINE_DEPTH)
+    launch {
+      for (pending in beingVerified) pending.await().let { verified ->
+        verifiedMessages[verified.trafficClass.ordinal].send(verified)
+        verified.handled.await()
+      }
+    }
+    val limiter = InboundLimiter()
+    val admitted = Admissions()
     try {
-      // Receive messages and send any non-null outputs of the handleMessage function
+      // Receive messages and queue them up for verification
       while (true) {
-        println("Waiting for stuff in the socket!")
-        while (socket.inputStream.available() == 0) {
-          runBlocking { delay(100) }
-        }
-        println("somethings in the socket!")
-        handleMessage(
-          identity,
-          Dcrl.DCRLMessage.parseDelimitedFrom(socket.inputStream).also { println("Received $it from ${socket.remoteAddress}") }
-        ).also { println("Sent $it to ${socket.remoteAddress}") }?.writeDelimitedTo(socket.outputStream)
+        socket.receiveMessage().also { Log.trace { "Received ${it.messageCase} from $identity" } }
+          .let { message ->
+            Metrics.received(message)
+            val trafficClass = TrafficClass.of(message).let {
+              val answered = (it == TrafficClass.REPLY || message.isError()) && pendingRequests.answered(identity)
+              if (it == TrafficClass.REPLY && !answered) TrafficClass.UNASKED_REPLY else it
+            }
+            if (!limiter.tryAcquire(trafficClass))
+              turnAway(identity, message, "Rate limit exceeded for $trafficClass messages")
+            else if (!admitted.tryAdmit(trafficClass))
+              turnAway(identity, message, "Too busy for more of those right now")
+            else
+              beingVerified.send(async(Dispatchers.Default) {
+                VerifiedMessage(identity, message, trafficClass, hasValidSignature(message), admitted)
+              })
+          }
       }
     } catch (e: Throwable) {
-      println("Error bubbled up to socket handling, so the socket ($identity) was closed.")
-      println(e)
+      Log.info { "Error bubbled up to socket handling, so the socket ($identity) was closed: $e" }
     } finally {
-      println("Removing $identity")
-      kotlin.runCatching { if (!socket.isClosed) socket.close() }
+      Log.debug { "Removing $identity" }
       otherServers.remove(identity)
+      toSendTo.remove(identity)?.close()
+      pendingRequests.forget(identity)
+      coroutineContext.cancelChildren()
+      admitted.releaseAll()
+      kotlin.runCatching { if (!socket.isClosed) socket.close() }
+      runOnStateMachine(Runnable { peerDisconnected(identity) })
     }
   }
 
+  // One connection's share of [backlog]. Whatever it still holds when the connection closes (messages that never
+  // reached the state machine) is given back all at once.
+  private inner class Admissions {
+    private val counts = AtomicIntegerArray(TrafficClass.values().size)
+
+    // Counts the message in, unless it's of a class that sheds load and the state machine is already backed up with it
+    fun tryAdmit(trafficClass: TrafficClass): Boolean {
+      if (trafficClass.shedWhenBusy && backlog[trafficClass.ordinal].get() >= STATE_MACHINE_CAPACITY) return false
+      counts.incrementAndGet(trafficClass.ordinal)
+      backlog[trafficClass.ordinal].incrementAndGet()
+      return true
+    }
+
+    fun release(trafficClass: TrafficClass) {
+      if (counts.getAndUpdate(trafficClass.ordinal) { maxOf(it - 1, 0) } > 0)
+        backlog[trafficClass.ordinal].decrementAndGet()
+    }
+
+    fun releaseAll() = TrafficClass.values().forEach {
+      backlog[it.ordinal].addAndGet(-counts.getAndSet(it.ordinal, 0))
+    }
+  }
+
+  // Answers a message we won't handle with an error, unless it was an error itself (two peers turning away each
+  // other's errors would never stop)
+  private fun turnAway(identity: NetworkIdentity, message: Dcrl.DCRLMessage, reason: String) {
+    Log.debug { "Turned away a ${message.messageCase} from $identity: $reason" }
+    Metrics.rejected(message)
+    if (!message.isError()) sendMessageToIdentity(identity, ProtocolServerUtil.buildErrorMessage(reason))
+  }
+
+  private fun Dcrl.DCRLMessage?.isError() =
+    this != null && (unsignedMessage.hasErrorMessage() || signedMessage.hasErrorMessage())
+
+  // The first stage of handling a message: checks that don't depend on (or change) any protocol state, so they're
+  // safe to run on any thread. Unsigned messages trivially pass.
+  private fun hasValidSignature(message: Dcrl.DCRLMessage): Boolean {
+    if (message.messageCase != Dcrl.DCRLMessage.MessageCase.SIGNED_MESSAGE) return true
+    val start = System.nanoTime()
+    return kotlin.runCatching { Util.verify(message.signedMessage) }.getOrDefault(false)
+      .also { Metrics.signatureVerify.record(System.nanoTime() - start) }
+  }
+
+  // The second stage of handling a message. This is the only coroutine that runs the handlers, so everything they
+  // touch (the blockchain, the revoked list, pending revocations...) has a single writer. [runProtocolServer] starts
+  // this once per server.
+  //
+  // When several queues have something waiting, local tasks go first and then the [TrafficClass]es in order. Within a
+  // connection, messages are always handled in the order they arrived (see [babysitSocket]).
+  suspend fun runStateMachine(): Nothing {
+    while (true) {
+      select<Unit> {
+        localTasks.onReceive { task ->
+          kotlin.runCatching { task.run() }.onFailure { Log.error(it) { "Local task failed" } }
+        }
+        verifiedMessages.forEach { queue ->
+          queue.onReceive { verified ->
+            messageBeingHandled = verified.message
+            val start = System.nanoTime()
+            kotlin.runCatching { handleVerifiedMessage(verified) }
+              .onSuccess { reply ->
+                if (!verified.signatureValid || reply.isError()) Metrics.rejected(verified.message)
+                else Metrics.handled(verified.message, System.nanoTime() - start)
+                reply?.let { sendMessageToIdentity(verified.identity, it) }
+              }
+              .onFailure {
+                Metrics.rejected(verified.message)
+                Log.warn(it) { "Couldn't handle ${verified.message.messageCase} from ${verified.identity}" }
+              }
+            messageBeingHandled = null
+            verified.admitted.release(verified.trafficClass)
+            verified.handled.complete(Unit)
+          }
+        }
+      }
+    }
+  }
+
+  // Runs the task on the state machine, for anything outside of message handling that needs to read or change
+  // protocol state
+  fun runOnStateMachine(task: Runnable) {
+    localTasks.offer(task)
+  }
+
+  // Runs [tick] on the state machine every [TICK_MILLIS]. [runProtocolServer] starts this once per server.
+  suspend fun runTicker(): Nothing {
+    while (true) {
+      delay(TICK_MILLIS)
+      runOnStateMachine(Runnable { tick() })
+    }
+  }
+
+  // Called on the state machine every [TICK_MILLIS], for anything that has to notice time passing (like a peer that
+  // stopped answering)
+  protected open fun tick() {}
+
+  // Called on the state machine once a peer's connection has closed
+  protected open fun peerDisconnected(identity: NetworkIdentity) {}
+
+  private class VerifiedMessage(
+    val identity: NetworkIdentity,
+    val message: Dcrl.DCRLMessage,
+    val trafficClass: TrafficClass,
+    val signatureValid: Boolean,
+    val admitted: Admissions
+  ) {
+    // Completed once the state machine is done with it, letting the connection's next message through
+    val handled = CompletableDeferred<Unit>()
+  }
+
+  private fun handleVerifiedMessage(verified: VerifiedMessage): Dcrl.DCRLMessage? =
+    when {
+      verified.message.messageCase != Dcrl.DCRLMessage.MessageCase.SIGNED_MESSAGE ->
+        handleMessage(verified.identity, verified.message)
+      verified.signatureValid -> handleVerifiedMessage(verified.identity, verified.message.signedMessage)
+      else -> {
+        Log.debug { "Bad signature on a message from ${verified.identity}" }
+        ProtocolServerUtil.buildErrorMessage("Bad signing")
+      }
+    }
+
   /*
   Public-facing interface stuff
    */
 
   // Assumes the hash is a base64 encoded bytes
   fun checkCertificate(hash: String): CheckResponse {
-    if (currentRevokedList.containsKey(ByteString.copyFrom(Base64.decodeBase64(hash)))) {
+    if (currentRevokedList.contains(ByteString.copyFrom(Base64.decodeBase64(hash)))) {
       return CheckResponse.REVOKED
     }
     return CheckResponse.NOT_REVOKED
@@ -103,13 +347,9 @@ abstract class ProtocolServer(val otherServers: MutableMap<NetworkIdentity, Sock
     throw IllegalArgumentException("Message case in $message was null")
 
   fun handleMessage(identity: NetworkIdentity, message: Dcrl.DCRLMessage): Dcrl.DCRLMessage?  {
-    println("got some message, trying to decrypt")
     return when (message.messageCase) {
       Dcrl.DCRLMessage.MessageCase.UNSIGNED_MESSAGE -> handleMessage(identity, message.unsignedMessage)
-      Dcrl.DCRLMessage.MessageCase.SIGNED_MESSAGE -> {
-        println("Called the handle for the signed")
-        handleMessage(identity, message.signedMessage)
-      }
+      Dcrl.DCRLMessage.MessageCase.SIGNED_MESSAGE -> handleMessage(identity, message.signedMessage)
       Dcrl.DCRLMessage.MessageCase.MESSAGE_NOT_SET -> failOnNotSet(message)
       null -> failOnNull(message)
     }
@@ -120,12 +360,20 @@ abstract class ProtocolServer(val otherServers: MutableMap<NetworkIdentity, Sock
       Dcrl.UnsignedMessage.MessageCase.BLOCKCHAIN_REQUEST -> handleMessage(identity, message.blockchainRequest)
       Dcrl.UnsignedMessage.MessageCase.BLOCK_REQUEST -> handleMessage(identity, message.blockRequest)
       Dcrl.UnsignedMessage.MessageCase.ERROR_MESSAGE -> handleMessage(identity, message.errorMessage)
+      Dcrl.UnsignedMessage.MessageCase.REVOCATION_PROOF_REQUEST -> handleMessage(identity, message.revocationProofRequest)
+      Dcrl.UnsignedMessage.MessageCase.BLOCK_RANGE_REQUEST -> handleMessage(identity, message.blockRangeRequest)
+      Dcrl.UnsignedMessage.MessageCase.HEADERS_REQUEST -> handleMessage(identity, message.headersRequest)
+      Dcrl.UnsignedMessage.MessageCase.FORK_LOCATOR_REQUEST -> handleMessage(identity, message.forkLocatorRequest)
       Dcrl.UnsignedMessage.MessageCase.MESSAGE_NOT_SET -> failOnNotSet(message)
       null -> failOnNull(message)
     }
 
   abstract fun handleMessage(identity: NetworkIdentity, message: Dcrl.BlockchainRequest): Dcrl.DCRLMessage?
   abstract fun handleMessage(identity: NetworkIdentity, message: Dcrl.BlockRequest): Dcrl.DCRLMessage?
+  abstract fun handleMessage(identity: NetworkIdentity, message: Dcrl.RevocationProofRequest): Dcrl.DCRLMessage?
+  abstract fun handleMessage(identity: NetworkIdentity, message: Dcrl.BlockRangeRequest): Dcrl.DCRLMessage?
+  abstract fun handleMessage(identity: NetworkIdentity, message: Dcrl.HeadersRequest): Dcrl.DCRLMessage?
+  abstract fun handleMessage(identity: NetworkIdentity, message: Dcrl.ForkLocatorRequest): Dcrl.DCRLMessage?
   abstract fun handleMessage(
     identity: NetworkIdentity,
     message: Dcrl.ErrorMessage,
@@ -134,54 +382,65 @@ abstract class ProtocolServer(val otherServers: MutableMap<NetworkIdentity, Sock
 
   fun handleMessage(identity: NetworkIdentity, message: Dcrl.SignedMessage): Dcrl.DCRLMessage? =
     if (!Util.verify(message)) {
-      println("bad signature")
+      Log.debug { "Bad signature on a message from $identity" }
       ProtocolServerUtil.buildErrorMessage("Bad signing")
     }
-    else {
-      println("delegating message")
-      when (message.messageCase) {
-        Dcrl.SignedMessage.MessageCase.CERTIFICATE_REVOCATION -> {
-          println("About to call for the revocation")
-          handleMessage(
-            identity,
-            message.certificateRevocation,
-            message.certificate
-          )
-        }
-        Dcrl.SignedMessage.MessageCase.BLOCK_MESSAGE -> handleMessage(
-          identity,
-          message.blockMessage,
-          message.certificate
-        )
-        Dcrl.SignedMessage.MessageCase.BLOCKCHAIN_RESPONSE -> {
-          println("reached blockchain resp block")
-          handleMessage(
-            identity,
-            message.blockchainResponse,
-            message.certificate
-          )
-        }
-        Dcrl.SignedMessage.MessageCase.BLOCK_RESPONSE -> handleMessage(
-          identity,
-          message.blockResponse,
-          message.certificate
-        )
-        Dcrl.SignedMessage.MessageCase.ERROR_MESSAGE -> handleMessage(
-          identity,
-          message.errorMessage,
-          message.certificate
-        )
-        Dcrl.SignedMessage.MessageCase.ANNOUNCE -> handleMessage(identity, message.announce, message.certificate)
-        Dcrl.SignedMessage.MessageCase.MESSAGE_NOT_SET -> {
-          println("msg case not set")
-          failOnNotSet(message)
-        }
-        null -> {
-          println("??? got null")
-          failOnNull(message)
-        }
-      }
+    else handleVerifiedMessage(identity, message)
+
+  // Dispatches a signed message whose signature has already been checked
+  fun handleVerifiedMessage(identity: NetworkIdentity, message: Dcrl.SignedMessage): Dcrl.DCRLMessage? {
+    Log.trace { "Handling ${message.messageCase} from $identity" }
+    return when (message.messageCase) {
+      Dcrl.SignedMessage.MessageCase.CERTIFICATE_REVOCATION -> handleMessage(
+        identity,
+        message.certificateRevocation,
+        message.certificate
+      )
+      Dcrl.SignedMessage.MessageCase.BLOCK_MESSAGE -> handleMessage(
+        identity,
+        message.blockMessage,
+        message.certificate
+      )
+      Dcrl.SignedMessage.MessageCase.BLOCKCHAIN_RESPONSE -> handleMessage(
+        identity,
+        message.blockchainResponse,
+        message.certificate
+      )
+      Dcrl.SignedMessage.MessageCase.BLOCK_RESPONSE -> handleMessage(
+        identity,
+        message.blockResponse,
+        message.certificate
+      )
+      Dcrl.SignedMessage.MessageCase.ERROR_MESSAGE -> handleMessage(
+        identity,
+        message.errorMessage,
+        message.certificate
+      )
+      Dcrl.SignedMessage.MessageCase.ANNOUNCE -> handleMessage(identity, message.announce, message.certificate)
+      Dcrl.SignedMessage.MessageCase.REVOCATION_PROOF_RESPONSE -> handleMessage(
+        identity,
+        message.revocationProofResponse,
+        message.certificate
+      )
+      Dcrl.SignedMessage.MessageCase.BLOCK_RANGE_RESPONSE -> handleMessage(
+        identity,
+        message.blockRangeResponse,
+        message.certificate
+      )
+      Dcrl.SignedMessage.MessageCase.HEADERS_RESPONSE -> handleMessage(
+        identity,
+        message.headersResponse,
+        message.certificate
+      )
+      Dcrl.SignedMessage.MessageCase.FORK_LOCATOR_RESPONSE -> handleMessage(
+        identity,
+        message.forkLocatorResponse,
+        message.certificate
+      )
+      Dcrl.SignedMessage.MessageCase.MESSAGE_NOT_SET -> failOnNotSet(message)
+      null -> failOnNull(message)
     }
+  }
 
   abstract fun handleMessage(
     identity: NetworkIdentity,
@@ -212,4 +471,28 @@ abstract class ProtocolServer(val otherServers: MutableMap<NetworkIdentity, Sock
     message: Dcrl.Announce,
     from: Dcrl.Certificate
   ): Dcrl.DCRLMessage?
+
+  abstract fun handleMessage(
+    identity: NetworkIdentity,
+    message: Dcrl.RevocationProofResponse,
+    from: Dcrl.Certificate
+  ): Dcrl.DCRLMessage?
+
+  abstract fun handleMessage(
+    identity: NetworkIdentity,
+    message: Dcrl.BlockRangeResponse,
+    from: Dcrl.Certificate
+  ): Dcrl.DCRLMessage?
+
+  abstract fun handleMessage(
+    identity: NetworkIdentity,
+    message: Dcrl.HeadersResponse,
+    from: Dcrl.Certificate
+  ): Dcrl.DCRLMessage?
+
+  abstract fun handleMessage(
+    identity: NetworkIdentity,
+    message: Dcrl.ForkLocatorResponse,
+    from: Dcrl.Certificate
+  ): Dcrl.DCRLMessage?
 }
\ No newline at end of file
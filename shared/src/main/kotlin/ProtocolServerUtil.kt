@@ -1,8 +1,10 @@
 import com.github.ajalt.clikt.core.CliktCommand
 import com.github.ajalt.clikt.parameters.options.convert
+import com.github.ajalt.clikt.parameters.options.default
 import com.github.ajalt.clikt.parameters.options.option
 import com.github.ajalt.clikt.parameters.options.required
 import com.github.ajalt.clikt.parameters.types.file
+import com.github.ajalt.clikt.parameters.types.int
 import io.ktor.network.selector.ActorSelectorManager
 import io.ktor.network.sockets.aSocket
 import io.ktor.network.sockets.isClosed
@@ -15,6 +17,7 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import java.io.File
 import java.net.InetSocketAddress
+import java.util.concurrent.ConcurrentHashMap
 
 abstract class CommandLineBase : CliktCommand() {
   protected val discoveryNetworkIdentity: NetworkIdentity by option("--discovery", "-d")
@@ -32,6 +35,14 @@ abstract class SignerCommandLineBase : CommandLineBase() {
   protected val selfPrivateKey: File by option("--key", "-k")
     .file(fileOkay = true, folderOkay = false, exists = true, readable = true)
     .required()
+  protected val gossipFanout: Int by option(
+    "--fanout",
+    help = "How many random participants to send each new block to, with receivers relaying it onward. 0 (the default) sends it to every participant directly"
+  ).int().default(0)
+  protected val blockStoreDirectory: File? by option(
+    "--block-store",
+    help = "Directory to keep the blockchain in across restarts. Without it the chain is only kept in memory"
+  ).file(fileOkay = false, folderOkay = true)
 }
 
 // An plain function that will run a given protocol server. Command line needs to be parsed or whatever before
@@ -45,12 +56,10 @@ fun <T : ProtocolServer> runProtocolServer(
 ): Unit {
   runBlocking {
 
-    println("Hello from a coroutine scope")
-
     // Make the server socket
     val serverSocket = aSocket(ActorSelectorManager(Dispatchers.IO)).tcp().bind()
 
-    println("Server socket created")
+    Log.debug { "Server socket created" }
 
     // Compute the server's port as late as possible (but keep track of it in case something happens)
     val serverSocketPort by lazy { (serverSocket.localAddress as InetSocketAddress).port }
@@ -61,7 +70,7 @@ fun <T : ProtocolServer> runProtocolServer(
       .tcp().connect(discoveryServer).use { discoverySocket ->
         // Tell the server about us (if we should)
 
-        println("About to send to discovery")
+        Log.debug { "About to send to discovery" }
 
         Discovery.FromClientMessage.newBuilder().apply {
           hello = when (becomeDiscoverable) {
@@ -70,7 +79,7 @@ fun <T : ProtocolServer> runProtocolServer(
           }
         }.build().writeDelimitedTo(discoverySocket.openWriteChannel(true).toOutputStream())
 
-        println("Sent to server")
+        Log.debug { "Sent to server" }
 
         // Parse the server's response
         Discovery.Response.parseDelimitedFrom(discoverySocket.openReadChannel().toInputStream()).serversList.map {
@@ -79,13 +88,17 @@ fun <T : ProtocolServer> runProtocolServer(
           Pair<NetworkIdentity, SocketTuple>(
             it, SocketTuple(aSocket(ActorSelectorManager(Dispatchers.IO)).tcp().connect(it))
           )
-        }.toMap(mutableMapOf())
+        }.toMap(ConcurrentHashMap())
       }
 
-    println("Heard back from discovery server, ${otherServers.size} other servers found")
+    Log.info { "Heard back from discovery server, ${otherServers.size} other servers found" }
 
     try {
       protocolServerFactory(otherServers, trustStoreDirectory).let { protocolServer: T ->
+        // Everything that handles messages runs through this one coroutine
+        launch(Dispatchers.Default) { protocolServer.runStateMachine() }
+        launch(Dispatchers.Default) { protocolServer.runTicker() }
+
         // For every server we know about, initiate a socket
         protocolServer.otherServers.forEach { (identity, socket) ->
           launch(Dispatchers.IO) {
@@ -95,7 +108,7 @@ fun <T : ProtocolServer> runProtocolServer(
             )
           }
         }
-        println("Connected to existing other servers")
+        Log.info { "Connected to existing other servers" }
 
         launch(Dispatchers.IO) { protocolServer.callbackUponConfigured() }
 
@@ -110,11 +123,11 @@ fun <T : ProtocolServer> runProtocolServer(
               NetworkIdentity.from(socket).let { identity ->
                 protocolServer.otherServers[identity] = socket
                 launch(Dispatchers.IO) { protocolServer.babysitSocket(identity, socket) }
-                println("Accepted a connection from $identity")
+                Log.info { "Accepted a connection from $identity" }
               }
             }
           } catch (e: Throwable) {
-            println(e)
+            Log.warn(e) { "Couldn't accept a connection" }
           }
         }
       }
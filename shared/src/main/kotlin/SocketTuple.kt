@@ -1,10 +1,15 @@
 import io.ktor.network.sockets.*
-import io.ktor.utils.io.jvm.javaio.toInputStream
-import io.ktor.utils.io.jvm.javaio.toOutputStream
+import io.ktor.utils.io.ByteReadChannel
+import io.ktor.utils.io.ByteWriteChannel
 
-// A network socket. Wraps a socket to only expose what we need: the outputStream and inputStream. This wrapping
+// A network socket. Wraps a socket to only expose what we need: the writeChannel and readChannel. This wrapping
 // helps prevent us from accidentally opening multiple streams on the same socket, which would cause errors.
+// The write channel doesn't flush on its own; its only writer is the peer's [PeerOutbox], which flushes per batch.
 class SocketTuple(private val socket: Socket) : ASocket by socket, AConnectedSocket by socket {
-  val outputStream = socket.openWriteChannel(true).toOutputStream()
-  val inputStream = socket.openReadChannel().toInputStream()
-}
\ No newline at end of file
+  val writeChannel: ByteWriteChannel = socket.openWriteChannel(autoFlush = false)
+  val readChannel: ByteReadChannel = socket.openReadChannel()
+
+  // Suspends until a whole length-delimited message has arrived (the same framing as [writeDelimitedTo]), without
+  // holding a thread while waiting
+  suspend fun receiveMessage(): Dcrl.DCRLMessage = MessageFraming.readMessage(readChannel)
+}
@@ -0,0 +1,68 @@
+import com.google.protobuf.ByteString
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+import java.util.function.LongSupplier
+
+// What checking a certificate's issuer signature (and that the issuer is trusted) came to, keyed by the certificate's
+// hash. There are only a handful of distinct signers, so after the first message from each, [verifyVerbose] can skip
+// the Ed25519 check entirely.
+//
+// The hash covers every field of the certificate, including the issuer's signature, so a hit is always for exactly the
+// same certificate. The result also depends on the trust store it was checked against, and servers in the same process
+// can have different ones, so each entry records which trusted certificate vouched for it: the issuer's hash, the
+// certificate's own hash if it's trusted itself, or nothing. A lookup only hits when the caller's trust store gives
+// the same answer. Good results are kept until the certificate expires, failures for [NEGATIVE_TTL_SECONDS], and a
+// certificate's entry is dropped as soon as it's revoked (see [RevokedSet]). Times are epoch seconds, like the
+// certificates' own.
+object VerifiedCertificateCache {
+  const val MAX_ENTRIES = 1024
+  const val NEGATIVE_TTL_SECONDS = 30L
+
+  // [error] is null for a certificate that checked out
+  class Entry(val error: String?, val trustedBy: ByteString, val expiresAt: Long)
+
+  private val entries = ConcurrentHashMap<ByteString, Entry>()
+  private val hits = LongAdder()
+  private val misses = LongAdder()
+
+  init {
+    Metrics.counter("dcrl_certificate_cache_hits_total", "Certificate checks answered from the cache", LongSupplier {
+      hits.sum()
+    })
+    Metrics.counter("dcrl_certificate_cache_misses_total", "Certificate checks that had to verify a signature",
+      LongSupplier { misses.sum() })
+  }
+
+  // The cached result for the certificate checked against a trust store holding [trustedBy], or null if there isn't
+  // one that's still current
+  fun lookup(hash: ByteString, trustedBy: ByteString, now: Long): Entry? {
+    val entry = entries[hash]?.takeIf { now <= it.expiresAt && it.trustedBy == trustedBy }
+    if (entry == null) misses.increment() else hits.increment()
+    return entry
+  }
+
+  fun remember(hash: ByteString, trustedBy: ByteString, error: String?, validUntil: Long, now: Long) {
+    if (entries.size >= MAX_ENTRIES) makeRoom(now)
+    entries[hash] =
+      Entry(error, trustedBy, if (error == null) validUntil else minOf(validUntil, now + NEGATIVE_TTL_SECONDS))
+  }
+
+  @JvmStatic
+  fun invalidate(hash: ByteString) {
+    entries.remove(hash)
+  }
+
+  @JvmStatic
+  fun clear() = entries.clear()
+
+  // Drops whatever has expired, and if that wasn't enough, half of what's left (in no particular order)
+  private fun makeRoom(now: Long) {
+    entries.values.removeIf { now > it.expiresAt }
+    if (entries.size < MAX_ENTRIES) return
+    val iterator = entries.keys.iterator()
+    while (entries.size > MAX_ENTRIES / 2 && iterator.hasNext()) {
+      iterator.next()
+      iterator.remove()
+    }
+  }
+}
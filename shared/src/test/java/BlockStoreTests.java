@@ -0,0 +1,144 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+A crash can leave anything at the end of the last segment, and opening the store has to cut it back to whole records
+without losing any of them. A write that fails part way through the chain mustn't leave later blocks at the wrong
+heights either, which is ChainIndex's job.
+ */
+public class BlockStoreTests {
+  private File directory;
+
+  @BeforeEach
+  public void createDirectory() throws IOException {
+    this.directory = Files.createTempDirectory("block-store").toFile();
+  }
+
+  @AfterEach
+  public void deleteDirectory() throws IOException {
+    try (Stream<Path> paths = Files.walk(this.directory.toPath())) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  @Test
+  public void truncatesTornTail() throws IOException {
+    List<Dcrl.BlockMessage> chain = TestChains.chain(6, 0);
+    try (BlockStore store = new BlockStore(this.directory, false)) {
+      for (Dcrl.BlockMessage block : chain.subList(0, 5)) {
+        store.append(block);
+      }
+    }
+    // a record that says it's 100 bytes long, cut off after 10 of them
+    try (RandomAccessFile file = new RandomAccessFile(onlySegment(), "rw")) {
+      file.seek(file.length());
+      file.writeInt(100);
+      file.writeInt(0);
+      file.write(new byte[10]);
+    }
+
+    try (BlockStore store = new BlockStore(this.directory, false)) {
+      assertEquals(chain.subList(0, 5), store.range(0, store.size()));
+      store.append(chain.get(5));
+    }
+    try (BlockStore store = new BlockStore(this.directory, false)) {
+      assertEquals(chain, store.range(0, store.size()));
+    }
+  }
+
+  @Test
+  public void dropsEverythingFromACorruptRecord() throws IOException {
+    List<Dcrl.BlockMessage> chain = TestChains.chain(5, 0);
+    long thirdRecordAt;
+    try (BlockStore store = new BlockStore(this.directory, false)) {
+      for (Dcrl.BlockMessage block : chain.subList(0, 3)) {
+        store.append(block);
+      }
+      thirdRecordAt = onlySegment().length() - (2 * Integer.BYTES + chain.get(2).getSerializedSize());
+      for (Dcrl.BlockMessage block : chain.subList(3, 5)) {
+        store.append(block);
+      }
+    }
+    // flip the last byte of the third block, so it fails its checksum
+    try (RandomAccessFile file = new RandomAccessFile(onlySegment(), "rw")) {
+      long at = thirdRecordAt + 2 * Integer.BYTES + chain.get(2).getSerializedSize() - 1;
+      file.seek(at);
+      int last = file.read();
+      file.seek(at);
+      file.write(last ^ 0xff);
+    }
+
+    try (BlockStore store = new BlockStore(this.directory, false)) {
+      assertEquals(chain.subList(0, 2), store.range(0, store.size()));
+      assertEquals(thirdRecordAt, onlySegment().length());
+    }
+  }
+
+  @Test
+  public void failedWriteDoesNotShiftLaterHeights() throws IOException {
+    List<Dcrl.BlockMessage> chain = TestChains.chain(6, 0);
+    try (FailingBlockStore store = new FailingBlockStore(this.directory)) {
+      ChainIndex index = new ChainIndex();
+      index.loadFrom(store);
+      index.append(chain.get(0));
+      index.append(chain.get(1));
+      store.failNextAppend = true;
+      index.append(chain.get(2));
+      assertEquals(2, store.size());
+
+      index.append(chain.get(3));
+      assertEquals(chain.subList(0, 4), store.range(0, store.size()));
+
+      // a fork replacing blocks the store already has, failing on its first block
+      List<Dcrl.BlockMessage> fork = TestChains.chain(7, 1);
+      store.failNextAppend = true;
+      index.replaceFrom(1, fork.subList(1, 6));
+      index.append(fork.get(6));
+      assertEquals(fork, store.range(0, store.size()));
+    }
+
+    try (BlockStore store = new BlockStore(this.directory, false)) {
+      ChainIndex reloaded = new ChainIndex();
+      reloaded.loadFrom(store);
+      assertEquals(7, reloaded.size());
+    }
+  }
+
+  private File onlySegment() {
+    File[] segments = this.directory.listFiles((dir, name) -> name.endsWith(".blocks"));
+    assertEquals(1, segments.length);
+    return segments[0];
+  }
+
+  private static final class FailingBlockStore extends BlockStore {
+    boolean failNextAppend;
+
+    FailingBlockStore(File directory) throws IOException {
+      super(directory, false);
+    }
+
+    @Override
+    public synchronized void append(Dcrl.BlockMessage block) throws IOException {
+      if (this.failNextAppend) {
+        this.failNextAppend = false;
+        throw new IOException("disk full");
+      }
+      super.append(block);
+    }
+  }
+}
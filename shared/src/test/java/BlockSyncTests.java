@@ -0,0 +1,299 @@
+import com.google.protobuf.ByteString;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+Syncs against peers played by the tests: each request BlockSync sends is answered (or not) from the peer's chain by
+hand, in whatever order a test needs. Certificates aren't checked here, only what BlockSync itself does with the
+headers and bodies.
+ */
+public class BlockSyncTests {
+  private static final NetworkIdentity A = new NetworkIdentity("127.0.0.1", 9001);
+  private static final NetworkIdentity B = new NetworkIdentity("127.0.0.1", 9002);
+
+  private final FakeHost host = new FakeHost();
+  private long now = 1_000_000;
+  private final BlockSync sync = new BlockSync(this.host, () -> this.now);
+
+  @Test
+  public void holdsAForkUntilEveryBodyIsIn() {
+    List<Dcrl.BlockMessage> ours = TestChains.chain(10, 0);
+    List<Dcrl.BlockMessage> theirs = TestChains.chain(300, 1);
+    have(ours);
+    fetchHeaders(theirs, B);
+
+    // A has the first range and B the second; B finishes, then gets the last one, all while A is still working
+    answerRange(B, theirs);
+    answerRange(B, theirs);
+    assertEquals(ours, this.host.chain.asList());
+    assertEquals(0, this.host.changes);
+
+    answerRange(A, theirs);
+    assertEquals(theirs, this.host.chain.asList());
+    assertEquals(1, this.host.changes);
+    assertEquals(1, this.host.finishes);
+    assertFalse(this.sync.isActive());
+  }
+
+  @Test
+  public void addsAnExtensionAsItArrives() {
+    List<Dcrl.BlockMessage> ours = TestChains.chain(10, 0);
+    List<Dcrl.BlockMessage> theirs = TestChains.fork(ours, 10, 300, 1);
+    have(ours);
+    fetchHeaders(theirs, B);
+
+    answerRange(A, theirs);
+    assertEquals(theirs.subList(0, 10 + BlockSync.BODY_RANGE_BLOCKS), this.host.chain.asList());
+    answerRange(A, theirs);
+    answerRange(B, theirs);
+    assertEquals(theirs, this.host.chain.asList());
+    assertFalse(this.sync.isActive());
+  }
+
+  @Test
+  public void handsASlowPeersRangeToAnIdleOne() {
+    List<Dcrl.BlockMessage> ours = TestChains.chain(1, 0);
+    List<Dcrl.BlockMessage> theirs = TestChains.chain(200, 0);
+    have(ours);
+    fetchHeaders(theirs, B);
+    Dcrl.BlockRangeRequest slow = lastRequest(A).getBlockRangeRequest();
+
+    answerRange(B, theirs);
+    assertFalse(this.sync.isWaitingOn(B));
+    this.now += BlockSync.CLAIM_TIMEOUT_MILLIS - 1;
+    this.sync.tick();
+    assertTrue(this.sync.isWaitingOn(A));
+    assertFalse(this.sync.isWaitingOn(B));
+
+    this.now += 1;
+    this.sync.tick();
+    assertFalse(this.sync.isWaitingOn(A));
+    assertTrue(this.sync.isWaitingOn(B));
+    assertEquals(slow, lastRequest(B).getBlockRangeRequest());
+
+    answerRange(B, theirs);
+    assertEquals(theirs, this.host.chain.asList());
+
+    // the slow peer's answer, when it finally comes, is ignored
+    this.sync.handleBodies(A, rangeResponse(theirs, slow));
+    assertEquals(theirs, this.host.chain.asList());
+    assertEquals(1, this.host.finishes);
+  }
+
+  @Test
+  public void givesUpWhenTheHeaderSourceGoesBeforeItsHeaders() {
+    List<Dcrl.BlockMessage> ours = TestChains.chain(5, 0);
+    List<Dcrl.BlockMessage> theirs = TestChains.chain(50, 1);
+    have(ours);
+    this.sync.start(A, Arrays.asList(A, B));
+    answerLocator(A, theirs);
+
+    this.sync.dropPeer(A, "disconnected");
+    assertFalse(this.sync.isActive());
+    assertEquals(1, this.host.finishes);
+
+    // headers that turn up afterwards don't start anything
+    answerHeaders(A, theirs);
+    assertNull(lastRequest(B));
+    assertEquals(ours, this.host.chain.asList());
+  }
+
+  @Test
+  public void handsTheHeaderSourcesRangeOnWhenItGoesAfterItsHeaders() {
+    List<Dcrl.BlockMessage> ours = TestChains.chain(1, 0);
+    List<Dcrl.BlockMessage> theirs = TestChains.chain(200, 0);
+    have(ours);
+    fetchHeaders(theirs, B);
+
+    this.sync.dropPeer(A, "disconnected");
+    assertTrue(this.sync.isActive());
+    answerRange(B, theirs);
+    assertTrue(this.sync.isWaitingOn(B));
+    answerRange(B, theirs);
+    assertEquals(theirs, this.host.chain.asList());
+  }
+
+  @Test
+  public void refetchesWrongBodiesFromAnotherPeer() {
+    List<Dcrl.BlockMessage> ours = TestChains.chain(1, 0);
+    List<Dcrl.BlockMessage> theirs = TestChains.chain(200, 0);
+    have(ours);
+    fetchHeaders(theirs, B);
+
+    // the right block hash (revocations aren't part of it), but revocations that don't give the header's merkle root
+    Dcrl.BlockRangeResponse right = rangeResponse(theirs, lastRequest(B).getBlockRangeRequest());
+    Dcrl.BlockRangeResponse wrong = right.toBuilder()
+        .setBlocks(0, right.getBlocks(0).toBuilder().addCertificateRevocations(
+            Dcrl.CertificateRevocation.newBuilder().setCertificate(TestChains.certificate("not in this block"))))
+        .build();
+    this.sync.handleBodies(B, wrong);
+    assertFalse(this.sync.isWaitingOn(B));
+    assertTrue(this.sync.isActive());
+
+    answerRange(A, theirs);
+    assertEquals(right.getFromHeight(), lastRequest(A).getBlockRangeRequest().getFromHeight());
+    answerRange(A, theirs);
+    assertEquals(theirs, this.host.chain.asList());
+  }
+
+  @Test
+  public void downloadsOnlyPastTheForkWhenTheLocatorFindsAnOlderBlock() {
+    List<Dcrl.BlockMessage> ours = TestChains.chain(100, 0);
+    List<Dcrl.BlockMessage> theirs = TestChains.fork(ours, 50, 120, 1);
+    have(ours);
+    this.sync.start(A, Arrays.asList(A, B));
+
+    // our locator skips from 60 to 28, so the newest block they can find in it is well before the fork
+    assertEquals(28, answerLocator(A, theirs));
+    answerHeaders(A, theirs);
+    assertEquals(50, lastRequest(A).getBlockRangeRequest().getFromHeight());
+    assertNull(lastRequest(B));
+
+    answerRange(A, theirs);
+    assertEquals(theirs, this.host.chain.asList());
+  }
+
+  @Test
+  public void givesUpAfterStalling() {
+    List<Dcrl.BlockMessage> ours = TestChains.chain(1, 0);
+    List<Dcrl.BlockMessage> theirs = TestChains.chain(200, 0);
+    have(ours);
+    fetchHeaders(theirs, B);
+
+    this.now += BlockSync.STALL_MILLIS;
+    this.sync.tick();
+    assertFalse(this.sync.isActive());
+    assertEquals(ours, this.host.chain.asList());
+  }
+
+  private void have(List<Dcrl.BlockMessage> chain) {
+    for (Dcrl.BlockMessage block : chain) {
+      this.host.chain.append(block);
+    }
+  }
+
+  /*
+  Starts syncing to A's chain, with bodies from A and the other peers, and answers A until the bodies are asked for
+   */
+  private void fetchHeaders(List<Dcrl.BlockMessage> theirs, NetworkIdentity... others) {
+    List<NetworkIdentity> peers = new ArrayList<>(Arrays.asList(others));
+    this.sync.start(A, peers);
+    answerLocator(A, theirs);
+    answerHeaders(A, theirs);
+  }
+
+  /*
+  Answers the peer's outstanding ForkLocatorRequest the way a participant would, returning the common height
+   */
+  private int answerLocator(NetworkIdentity peer, List<Dcrl.BlockMessage> theirs) {
+    List<ByteString> locator = lastRequest(peer).getForkLocatorRequest().getBlockHashesList();
+    int common = 0;
+    for (ByteString hash : locator) {
+      int height = heightOf(theirs, hash);
+      if (height >= 0) {
+        common = height;
+        break;
+      }
+    }
+    assertNull(this.sync.handleLocator(peer, Dcrl.ForkLocatorResponse.newBuilder()
+        .setCommonHeight(common)
+        .setCommonHash(Util.hash(theirs.get(common)))
+        .setTipHeight(theirs.size() - 1)
+        .build()));
+    return common;
+  }
+
+  private void answerHeaders(NetworkIdentity peer, List<Dcrl.BlockMessage> theirs) {
+    int from = (int) lastRequest(peer).getHeadersRequest().getFromHeight();
+    Dcrl.HeadersResponse.Builder response = Dcrl.HeadersResponse.newBuilder()
+        .setFromHeight(from)
+        .setTipHeight(theirs.size() - 1);
+    for (Dcrl.BlockMessage block : theirs.subList(from, theirs.size())) {
+      response.addHeaders(block.toBuilder().clearCertificateRevocations());
+    }
+    this.sync.handleHeaders(peer, response.build());
+  }
+
+  private void answerRange(NetworkIdentity peer, List<Dcrl.BlockMessage> theirs) {
+    assertTrue(this.sync.isWaitingOn(peer));
+    this.sync.handleBodies(peer, rangeResponse(theirs, lastRequest(peer).getBlockRangeRequest()));
+  }
+
+  private static Dcrl.BlockRangeResponse rangeResponse(List<Dcrl.BlockMessage> theirs,
+                                                       Dcrl.BlockRangeRequest request) {
+    int from = (int) request.getFromHeight();
+    return Dcrl.BlockRangeResponse.newBuilder()
+        .setFromHeight(from)
+        .setTipHeight(theirs.size() - 1)
+        .addAllBlocks(theirs.subList(from, Math.min(from + (int) request.getLimit(), theirs.size())))
+        .build();
+  }
+
+  private Dcrl.UnsignedMessage lastRequest(NetworkIdentity peer) {
+    return this.host.lastRequests.get(peer);
+  }
+
+  private static int heightOf(List<Dcrl.BlockMessage> chain, ByteString hash) {
+    for (int height = 0; height < chain.size(); height++) {
+      if (Util.hash(chain.get(height)).equals(hash)) {
+        return height;
+      }
+    }
+    return -1;
+  }
+
+  private static final class FakeHost implements BlockSync.Host {
+    final ChainIndex chain = new ChainIndex();
+    final Map<NetworkIdentity, Dcrl.UnsignedMessage> lastRequests = new HashMap<>();
+    int changes = 0;
+    int finishes = 0;
+
+    @NotNull
+    @Override
+    public ChainIndex chain() {
+      return this.chain;
+    }
+
+    @Override
+    public boolean followsOn(int height, @NotNull Dcrl.BlockMessage block) {
+      if (height == 0) {
+        return Util.hash(block).equals(Util.hash(TestChains.chain(1, 0).get(0)));
+      }
+      return height <= this.chain.size() && block.getPreviousBlock().equals(this.chain.hashAt(height - 1));
+    }
+
+    @NotNull
+    @Override
+    public BlockchainVerifier.Result verify(@NotNull List<Dcrl.BlockMessage> headers,
+                                            int fromHeight,
+                                            @NotNull ByteString previousHash) {
+      return BlockchainVerifier.Result.VALID;
+    }
+
+    @Override
+    public void send(@NotNull NetworkIdentity peer, @NotNull Dcrl.DCRLMessage message) {
+      this.lastRequests.put(peer, message.getUnsignedMessage());
+    }
+
+    @Override
+    public void chainChanged() {
+      this.changes++;
+    }
+
+    @Override
+    public void finished() {
+      this.finishes++;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+The encoder has to produce exactly the bytes the old ByteString/Hasher based versions did, or every existing hash and
+signature stops matching. The reference versions below are those originals.
+ */
+@SuppressWarnings("UnstableApiUsage")
+public class CanonicalEncoderTests {
+  private final Random random = new Random(42);
+
+  @Test
+  public void matchesOriginalDigests() {
+    for (int i = 0; i < 200; i++) {
+      Dcrl.Certificate cert = randomCertificate();
+      assertArrayEquals(referenceDigestForHash(cert), CanonicalEncoder.digestForHash(cert));
+      assertArrayEquals(referenceDigestForSignature(cert), CanonicalEncoder.digestForSignature(cert));
+      assertEquals(referenceHashCert(cert), CanonicalEncoder.hashCert(cert));
+
+      Dcrl.BlockMessage block = Dcrl.BlockMessage.newBuilder()
+          .setCertificate(cert)
+          .setHeight(this.random.nextLong())
+          .setPreviousBlock(randomBytes(32))
+          .setTimestamp(this.random.nextLong())
+          .setMerkleRoot(randomBytes(this.random.nextBoolean() ? 32 : 0))
+          .build();
+      assertEquals(referenceHashBlock(block), CanonicalEncoder.hashBlock(block));
+    }
+  }
+
+  @Test
+  public void matchesOriginalDigestsForGenesis() {
+    assertArrayEquals(referenceDigestForHash(Constants.GENESIS_BLOCK_CERTIFICATE),
+        CanonicalEncoder.digestForHash(Constants.GENESIS_BLOCK_CERTIFICATE));
+    assertEquals(referenceHashBlock(Constants.GENESIS_BLOCK), CanonicalEncoder.hashBlock(Constants.GENESIS_BLOCK));
+  }
+
+  private Dcrl.Certificate randomCertificate() {
+    Dcrl.Certificate.Builder builder = Dcrl.Certificate.newBuilder()
+        .setSubject("subject " + this.random.nextInt())
+        .setValidFrom(this.random.nextLong())
+        .setValidLength(this.random.nextInt())
+        .setSigningPublicKey(randomBytes(32))
+        .setIssuerCertificateHash(randomBytes(32))
+        .setIssuerSignature(randomBytes(64));
+    for (int u = this.random.nextInt(3); u > 0; u--) {
+      builder.addUsages(this.random.nextBoolean() ? Dcrl.CertificateUsage.AUTHORITY : Dcrl.CertificateUsage.PARTICIPATION);
+    }
+    return builder.build();
+  }
+
+  private ByteString randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    this.random.nextBytes(bytes);
+    return ByteString.copyFrom(bytes);
+  }
+
+  private static ByteString referenceHashCert(Dcrl.CertificateOrBuilder cert) {
+    Hasher hasher = Hashing.sha256().newHasher()
+        .putBytes(cert.getSubjectBytes().toByteArray())
+        .putLong(cert.getValidFrom())
+        .putInt(cert.getValidLength());
+    for (Dcrl.CertificateUsage usage : cert.getUsagesList()) {
+      hasher.putInt(usage.getNumber());
+    }
+    hasher.putBytes(cert.getSigningPublicKey().toByteArray())
+        .putBytes(cert.getIssuerCertificateHash().toByteArray())
+        .putBytes(cert.getIssuerSignature().toByteArray());
+    return ByteString.copyFrom(hasher.hash().asBytes());
+  }
+
+  private static ByteString referenceHashBlock(Dcrl.BlockMessageOrBuilder block) {
+    return ByteString.copyFrom(Hashing.sha256().newHasher()
+        .putBytes(referenceDigestForHash(block.getCertificate()))
+        .putLong(block.getHeight())
+        .putBytes(block.getPreviousBlock().toByteArray())
+        .putLong(block.getTimestamp())
+        .putBytes(block.getMerkleRoot().toByteArray())
+        .hash()
+        .asBytes());
+  }
+
+  private static byte[] referenceDigestForHash(Dcrl.CertificateOrBuilder cert) {
+    return referenceDigestForSignature(cert, ByteString.EMPTY).concat(cert.getIssuerSignature()).toByteArray();
+  }
+
+  private static byte[] referenceDigestForSignature(Dcrl.CertificateOrBuilder cert) {
+    return referenceDigestForSignature(cert, ByteString.EMPTY).toByteArray();
+  }
+
+  private static ByteString referenceDigestForSignature(Dcrl.CertificateOrBuilder cert, ByteString digest) {
+    digest = digest
+        .concat(cert.getSubjectBytes())
+        .concat(ByteString.copyFrom(Longs.toByteArray(cert.getValidFrom())))
+        .concat(ByteString.copyFrom(Ints.toByteArray(cert.getValidLength())));
+    for (Dcrl.CertificateUsage usage : cert.getUsagesList()) {
+      digest = digest.concat(ByteString.copyFrom(Ints.toByteArray(usage.getNumber())));
+    }
+    return digest
+        .concat(cert.getSigningPublicKey())
+        .concat(cert.getIssuerCertificateHash());
+  }
+}
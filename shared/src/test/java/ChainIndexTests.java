@@ -0,0 +1,56 @@
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+The locator has to let another server find a block the two chains share wherever they forked, and not one so far
+back that it has to send much more than the blocks it has that we don't.
+ */
+public class ChainIndexTests {
+  @Test
+  public void locatorRunsFromTheTipToBlockZero() {
+    ChainIndex chain = index(TestChains.chain(1000, 0));
+    List<ByteString> locator = chain.locator();
+    assertEquals(chain.tipHash(), locator.get(0));
+    assertEquals(chain.hashAt(0), locator.get(locator.size() - 1));
+    for (int i = 0; i < 10; i++) {
+      assertEquals(chain.hashAt(999 - i), locator.get(i));
+    }
+    // ten, then at most one for each doubling of the step up to the chain's length, then block 0
+    assertTrue(locator.size() <= 10 + 10 + 1, "locator has " + locator.size() + " hashes");
+
+    assertEquals(1, index(TestChains.chain(1, 0)).locator().size());
+    assertTrue(new ChainIndex().locator().isEmpty());
+  }
+
+  @Test
+  public void locatorFindsAnAncestorNoFurtherBehindTheForkThanTheForkIsBehindTheTip() {
+    List<Dcrl.BlockMessage> ours = TestChains.chain(600, 0);
+    List<ByteString> locator = index(ours).locator();
+    for (int forkHeight = 1; forkHeight < ours.size(); forkHeight++) {
+      ChainIndex theirs = index(TestChains.fork(ours, forkHeight, forkHeight + 5, 1));
+      int common = -1;
+      for (ByteString hash : locator) {
+        if (theirs.contains(hash)) {
+          common = theirs.heightOf(hash);
+          break;
+        }
+      }
+      // the newest block the chains share is at forkHeight - 1
+      int newestShared = forkHeight - 1;
+      int tipHeight = ours.size() - 1;
+      assertTrue(common >= 0 && common <= newestShared, "fork at " + forkHeight + " found " + common);
+      assertTrue(newestShared - common <= tipHeight - newestShared, "fork at " + forkHeight + " found " + common);
+    }
+  }
+
+  private static ChainIndex index(List<Dcrl.BlockMessage> blocks) {
+    ChainIndex chain = new ChainIndex();
+    chain.replaceWith(blocks);
+    return chain;
+  }
+}
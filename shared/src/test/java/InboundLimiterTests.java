@@ -0,0 +1,92 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+Which class each message falls in, that a class's burst is let through and no more, and that only a peer that owes us
+an answer gets its reply treated as one.
+ */
+public class InboundLimiterTests {
+  private static final NetworkIdentity PEER = new NetworkIdentity("127.0.0.1", 9001);
+  private static final NetworkIdentity OTHER = new NetworkIdentity("127.0.0.1", 9002);
+
+  @Test
+  public void classifiesMessages() {
+    assertEquals(TrafficClass.BULK, TrafficClass.Companion.of(unsigned(
+        Dcrl.UnsignedMessage.newBuilder().setBlockchainRequest(Dcrl.BlockchainRequest.getDefaultInstance()))));
+    assertEquals(TrafficClass.SYNC, TrafficClass.Companion.of(unsigned(
+        Dcrl.UnsignedMessage.newBuilder().setHeadersRequest(Dcrl.HeadersRequest.getDefaultInstance()))));
+    assertEquals(TrafficClass.CONTROL, TrafficClass.Companion.of(unsigned(
+        Dcrl.UnsignedMessage.newBuilder().setBlockRequest(Dcrl.BlockRequest.getDefaultInstance()))));
+    assertEquals(TrafficClass.BLOCK_PROPAGATION, TrafficClass.Companion.of(signed(
+        Dcrl.SignedMessage.newBuilder().setBlockMessage(Dcrl.BlockMessage.getDefaultInstance()))));
+    assertEquals(TrafficClass.REVOCATION, TrafficClass.Companion.of(signed(
+        Dcrl.SignedMessage.newBuilder().setCertificateRevocation(Dcrl.CertificateRevocation.getDefaultInstance()))));
+    assertEquals(TrafficClass.REPLY, TrafficClass.Companion.of(signed(
+        Dcrl.SignedMessage.newBuilder().setHeadersResponse(Dcrl.HeadersResponse.getDefaultInstance()))));
+    assertEquals(TrafficClass.CONTROL, TrafficClass.Companion.of(signed(
+        Dcrl.SignedMessage.newBuilder().setAnnounce(Dcrl.Announce.getDefaultInstance()))));
+  }
+
+  @Test
+  public void onlyRequestsThatGetAReplyAreCounted() {
+    assertTrue(TrafficClass.Companion.isRequest(unsigned(
+        Dcrl.UnsignedMessage.newBuilder().setHeadersRequest(Dcrl.HeadersRequest.getDefaultInstance()))));
+    assertTrue(TrafficClass.Companion.isRequest(unsigned(
+        Dcrl.UnsignedMessage.newBuilder().setBlockchainRequest(Dcrl.BlockchainRequest.getDefaultInstance()))));
+    // answered with a BlockResponse, which is block propagation rather than a reply
+    assertFalse(TrafficClass.Companion.isRequest(unsigned(
+        Dcrl.UnsignedMessage.newBuilder().setBlockRequest(Dcrl.BlockRequest.getDefaultInstance()))));
+    assertFalse(TrafficClass.Companion.isRequest(signed(
+        Dcrl.SignedMessage.newBuilder().setHeadersResponse(Dcrl.HeadersResponse.getDefaultInstance()))));
+  }
+
+  @Test
+  public void letsABurstThroughAndNoMore() {
+    InboundLimiter limiter = new InboundLimiter();
+    for (int i = 0; i < TrafficClass.BULK.getBurst(); i++) {
+      assertTrue(limiter.tryAcquire(TrafficClass.BULK));
+    }
+    assertFalse(limiter.tryAcquire(TrafficClass.BULK));
+    // each class has its own budget, and replies have none
+    assertTrue(limiter.tryAcquire(TrafficClass.SYNC));
+    for (int i = 0; i < 10_000; i++) {
+      assertTrue(limiter.tryAcquire(TrafficClass.REPLY));
+    }
+  }
+
+  @Test
+  public void countsAnswersAgainstRequests() {
+    PendingRequests pending = new PendingRequests();
+    assertFalse(pending.answered(PEER));
+
+    pending.sent(PEER);
+    pending.sent(PEER);
+    assertFalse(pending.answered(OTHER));
+    assertTrue(pending.answered(PEER));
+    assertTrue(pending.answered(PEER));
+    assertFalse(pending.answered(PEER));
+
+    for (int i = 0; i < PendingRequests.MAX_PENDING * 2; i++) {
+      pending.sent(PEER);
+    }
+    for (int i = 0; i < PendingRequests.MAX_PENDING; i++) {
+      assertTrue(pending.answered(PEER));
+    }
+    assertFalse(pending.answered(PEER));
+
+    pending.sent(PEER);
+    pending.forget(PEER);
+    assertFalse(pending.answered(PEER));
+  }
+
+  private static Dcrl.DCRLMessage unsigned(Dcrl.UnsignedMessage.Builder message) {
+    return Dcrl.DCRLMessage.newBuilder().setUnsignedMessage(message).build();
+  }
+
+  private static Dcrl.DCRLMessage signed(Dcrl.SignedMessage.Builder message) {
+    return Dcrl.DCRLMessage.newBuilder().setSignedMessage(message).build();
+  }
+}
@@ -0,0 +1,104 @@
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+Block hashes cover the Merkle root, so the iterative builder has to give exactly the roots the original recursive
+Util.merkleRoot did. That one only finished for up to 25 revocations; past that the reference uses the split rule
+MerkleTree documents.
+ */
+@SuppressWarnings("UnstableApiUsage")
+public class MerkleTreeTests {
+
+  @Test
+  public void matchesOriginalRoots() {
+    List<Dcrl.CertificateRevocation> revocations = revocations(25);
+    for (int n = 0; n <= 25; n++) {
+      List<Dcrl.CertificateRevocation> list = revocations.subList(0, n);
+      assertArrayEquals(referenceRoot(list, false), MerkleTree.root(list), "root of " + n);
+    }
+  }
+
+  @Test
+  public void matchesReferenceRootsForBigLists() {
+    List<Dcrl.CertificateRevocation> revocations = revocations(5000);
+    for (int n : new int[]{26, 32, 33, 100, 1023, 1024, 1025, 4096, 5000}) {
+      List<Dcrl.CertificateRevocation> list = revocations.subList(0, n);
+      assertArrayEquals(referenceRoot(list, true), MerkleTree.root(list), "root of " + n);
+    }
+  }
+
+  @Test
+  public void proofsLeadToTheRoot() {
+    List<Dcrl.CertificateRevocation> revocations = revocations(40);
+    for (int n = 1; n <= 40; n++) {
+      List<Dcrl.CertificateRevocation> list = revocations.subList(0, n);
+      ByteString root = ByteString.copyFrom(Util.merkleRoot(list));
+      for (int i = 0; i < n; i++) {
+        List<Dcrl.MerkleProofStep> proof = Util.merkleProof(list, i);
+        assertTrue(Util.verifyMerkleProof(list.get(i), proof, root), "proof for " + i + " of " + n);
+        // the same path doesn't prove any other revocation
+        if (n > 1) {
+          assertFalse(Util.verifyMerkleProof(list.get((i + 1) % n), proof, root));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void accumulatorMatchesRoots() {
+    List<Dcrl.CertificateRevocation> revocations = revocations(300);
+    MerkleAccumulator accumulator = new MerkleAccumulator();
+    assertArrayEquals(new byte[0], accumulator.root());
+    for (int n = 1; n <= 300; n++) {
+      accumulator.add(revocations.get(n - 1));
+      assertArrayEquals(MerkleTree.root(revocations.subList(0, n)), accumulator.root(), "root of " + n);
+    }
+    accumulator.clear();
+    accumulator.add(revocations.get(7));
+    assertArrayEquals(MerkleTree.root(revocations.subList(7, 8)), accumulator.root());
+  }
+
+  private static List<Dcrl.CertificateRevocation> revocations(int count) {
+    List<Dcrl.CertificateRevocation> revocations = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      revocations.add(Dcrl.CertificateRevocation.newBuilder()
+          .setCertificate(Dcrl.Certificate.newBuilder()
+              .setSubject("revoked " + i)
+              .setValidFrom(i)
+              .setSigningPublicKey(ByteString.copyFromUtf8("key " + i)))
+          .build());
+    }
+    return revocations;
+  }
+
+  // the original recursion, optionally with the split that works past 25
+  private static byte[] referenceRoot(List<Dcrl.CertificateRevocation> revocations, boolean fixedSplit) {
+    if (revocations.size() == 0) {
+      return new byte[0];
+    } else if (revocations.size() == 1) {
+      List<Dcrl.CertificateRevocation> dup = new ArrayList<>();
+      dup.add(revocations.get(0));
+      dup.add(revocations.get(0));
+      return referenceRoot(dup, fixedSplit);
+    } else if (revocations.size() == 2) {
+      byte[] rev0 = Hashing.sha256().hashBytes(Util.hash(revocations.get(0)).toByteArray()).asBytes();
+      byte[] rev1 = Hashing.sha256().hashBytes(Util.hash(revocations.get(1)).toByteArray()).asBytes();
+      return Hashing.sha256().newHasher().putBytes(rev0).putBytes(rev1).hash().asBytes();
+    } else {
+      int divide = fixedSplit
+          ? MerkleTree.split(revocations.size())
+          : (int) Math.pow(2, Math.ceil(Math.sqrt(revocations.size())) - 1);
+      byte[] left = referenceRoot(revocations.subList(0, divide), fixedSplit);
+      byte[] right = referenceRoot(revocations.subList(divide, revocations.size()), fixedSplit);
+      return Hashing.sha256().newHasher().putBytes(left).putBytes(right).hash().asBytes();
+    }
+  }
+}
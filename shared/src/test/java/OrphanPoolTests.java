@@ -0,0 +1,116 @@
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+The pool's limits, which have to hold however many blocks a peer sends ahead of their parents, and what it gives back
+once a parent turns up.
+ */
+public class OrphanPoolTests {
+  private static final NetworkIdentity PEER = new NetworkIdentity("127.0.0.1", 9001);
+
+  private final OrphanPool pool = new OrphanPool();
+
+  @Test
+  public void dropsTheOldestPastTheCount() {
+    List<OrphanPool.Orphan> orphans = new ArrayList<>();
+    for (int i = 0; i <= OrphanPool.MAX_ORPHANS; i++) {
+      orphans.add(orphan(block(i + 2, i, 0), i));
+      this.pool.add(orphans.get(i));
+    }
+    assertEquals(OrphanPool.MAX_ORPHANS, this.pool.size());
+    assertEquals(OrphanPool.MAX_ORPHANS, this.pool.publishedSize());
+    assertTrue(this.pool.takeChildrenOf(orphans.get(0).block.getPreviousBlock()).isEmpty());
+    assertEquals(Collections.singletonList(orphans.get(1)),
+        this.pool.takeChildrenOf(orphans.get(1).block.getPreviousBlock()));
+  }
+
+  @Test
+  public void dropsTheOldestPastTheBytes() {
+    int blockBytes = 1 << 20;
+    List<OrphanPool.Orphan> orphans = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      orphans.add(orphan(block(i + 2, i, blockBytes), i));
+      this.pool.add(orphans.get(i));
+      assertTrue(this.pool.bytes() <= OrphanPool.MAX_BYTES);
+    }
+    // sixteen blocks of just over 1 MiB don't fit in 16 MiB
+    assertEquals(15, this.pool.size());
+    assertTrue(this.pool.takeChildrenOf(orphans.get(4).block.getPreviousBlock()).isEmpty());
+    assertEquals(Collections.singletonList(orphans.get(5)),
+        this.pool.takeChildrenOf(orphans.get(5).block.getPreviousBlock()));
+  }
+
+  @Test
+  public void forgetsBlocksAfterTheExpiry() {
+    OrphanPool.Orphan old = orphan(block(5, 0, 0), 0);
+    this.pool.add(old);
+    this.pool.add(orphan(block(6, 0, 0), OrphanPool.EXPIRY_MILLIS - 1));
+    assertEquals(2, this.pool.size());
+
+    this.pool.add(orphan(block(7, 0, 0), OrphanPool.EXPIRY_MILLIS));
+    assertEquals(2, this.pool.size());
+    assertEquals(2, this.pool.publishedSize());
+    assertTrue(this.pool.takeChildrenOf(old.block.getPreviousBlock()).isEmpty());
+  }
+
+  @Test
+  public void givesBackEveryChildOfAParentOldestFirst() {
+    ByteString parent = Util.hash(block(4, 0, 0));
+    OrphanPool.Orphan first = orphan(child(parent, 1), 0);
+    OrphanPool.Orphan second = orphan(child(parent, 2), 1);
+    OrphanPool.Orphan unrelated = orphan(block(5, 3, 0), 2);
+    this.pool.add(first);
+    this.pool.add(unrelated);
+    this.pool.add(second);
+    // the same block again changes nothing
+    this.pool.add(orphan(first.block, 3));
+    assertEquals(3, this.pool.publishedSize());
+
+    assertEquals(Arrays.asList(first, second), this.pool.takeChildrenOf(parent));
+    assertEquals(1, this.pool.size());
+    assertEquals(1, this.pool.publishedSize());
+    assertEquals(unrelated.bytes, this.pool.bytes());
+    assertTrue(this.pool.takeChildrenOf(parent).isEmpty());
+  }
+
+  @Test
+  public void asksForAHeightOnceUntilTheRetry() {
+    assertTrue(this.pool.shouldRequest(10, 0));
+    assertFalse(this.pool.shouldRequest(10, OrphanPool.REQUEST_RETRY_MILLIS - 1));
+    assertTrue(this.pool.shouldRequest(11, 1));
+    assertTrue(this.pool.shouldRequest(10, OrphanPool.REQUEST_RETRY_MILLIS));
+
+    // a block at the height is already here, waiting for its own parent
+    this.pool.add(orphan(block(20, 0, 0), 0));
+    assertFalse(this.pool.shouldRequest(20, OrphanPool.REQUEST_RETRY_MILLIS * 10));
+  }
+
+  /*
+  A block at the height with a parent nobody has, made distinct by the seed, with padding bytes of merkle root
+   */
+  private static Dcrl.BlockMessage block(long height, long seed, int padding) {
+    return Dcrl.BlockMessage.newBuilder()
+        .setHeight(height)
+        .setPreviousBlock(ByteString.copyFromUtf8("parent " + height + " " + seed))
+        .setTimestamp(seed)
+        .setMerkleRoot(ByteString.copyFrom(new byte[padding]))
+        .build();
+  }
+
+  private static Dcrl.BlockMessage child(ByteString parent, long seed) {
+    return Dcrl.BlockMessage.newBuilder().setHeight(5).setPreviousBlock(parent).setTimestamp(seed).build();
+  }
+
+  private static OrphanPool.Orphan orphan(Dcrl.BlockMessage block, long receivedAt) {
+    return new OrphanPool.Orphan(block, Util.hash(block), PEER, null, receivedAt);
+  }
+}
@@ -0,0 +1,66 @@
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+Removing from the table shifts entries back along their probe runs, which is easy to get subtly wrong, so it's checked
+against a HashSet through enough adds and removes to grow the table a few times and wrap runs around its end.
+ */
+public class RevokedHashTableTests {
+
+  @Test
+  public void matchesHashSet() {
+    Random random = new Random(25);
+    RevokedHashTable table = new RevokedHashTable();
+    Set<ByteString> expected = new HashSet<>();
+    List<ByteString> keys = new ArrayList<>();
+    for (int i = 0; i < 6000; i++) {
+      keys.add(randomHash(random));
+    }
+    keys.add(ByteString.copyFrom(new byte[RevokedHashTable.HASH_BYTES]));
+
+    for (int step = 0; step < 40000; step++) {
+      ByteString key = keys.get(random.nextInt(keys.size()));
+      if (random.nextInt(3) == 0) {
+        assertEquals(expected.remove(key), table.remove(key));
+      } else {
+        assertEquals(expected.add(key), table.add(key));
+      }
+      assertEquals(expected.size(), table.size());
+    }
+    for (ByteString key : keys) {
+      assertEquals(expected.contains(key), table.contains(key));
+    }
+  }
+
+  @Test
+  public void onlyTakesFullHashes() {
+    RevokedHashTable table = new RevokedHashTable();
+    ByteString shortHash = ByteString.copyFrom(new byte[]{1, 2, 3});
+    assertThrows(IllegalArgumentException.class, () -> table.add(shortHash));
+    assertFalse(table.contains(shortHash));
+    assertFalse(table.remove(shortHash));
+
+    ByteString hash = randomHash(new Random(0));
+    assertTrue(table.add(hash));
+    table.clear();
+    assertFalse(table.contains(hash));
+    assertEquals(0, table.size());
+  }
+
+  private static ByteString randomHash(Random random) {
+    byte[] bytes = new byte[RevokedHashTable.HASH_BYTES];
+    random.nextBytes(bytes);
+    return ByteString.copyFrom(bytes);
+  }
+}
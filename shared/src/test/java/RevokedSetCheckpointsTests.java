@@ -0,0 +1,102 @@
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+After any change to the chain, the revoked set has to be exactly what replaying the new chain from scratch would give,
+whether the fork is among the blocks since the newest checkpoint, behind a checkpoint or two, or back at the start.
+ */
+public class RevokedSetCheckpointsTests {
+  private final ChainIndex chain = new ChainIndex();
+  private final RevokedSet revoked = new RevokedSet();
+  private final RevokedSetCheckpoints checkpoints = new RevokedSetCheckpoints(this.revoked);
+  // every certificate any chain here revokes
+  private final Set<Dcrl.Certificate> everyCertificate = new HashSet<>();
+
+  @Test
+  public void matchesAReplayAfterEveryKindOfFork() {
+    List<Dcrl.BlockMessage> main = extend(new ArrayList<>(), 400, 0);
+    this.chain.replaceWith(main);
+    this.checkpoints.catchUp(this.chain);
+    assertMatchesReplay();
+    assertEquals(3, this.checkpoints.publishedCheckpointCount());
+
+    // past the newest checkpoint (383), behind one (255), behind two (127 and 255), and everything but block 0
+    int[] forkHeights = {390, 300, 200, 100, 1};
+    for (int i = 0; i < forkHeights.length; i++) {
+      List<Dcrl.BlockMessage> fork = extend(main.subList(0, forkHeights[i]), forkHeights[i] + 60, i + 1);
+      this.chain.replaceWith(fork);
+      this.checkpoints.catchUp(this.chain);
+      assertMatchesReplay();
+      assertEquals(this.chain.size() / RevokedSetCheckpoints.INTERVAL, this.checkpoints.publishedCheckpointCount());
+
+      this.chain.replaceWith(main);
+      this.checkpoints.catchUp(this.chain);
+      assertMatchesReplay();
+    }
+  }
+
+  @Test
+  public void keepsRevocationsBothSidesOfAForkMade() {
+    List<Dcrl.BlockMessage> main = extend(new ArrayList<>(), 300, 0);
+    this.chain.replaceWith(main);
+    this.checkpoints.catchUp(this.chain);
+
+    // the fork revokes, again, certificates that were first revoked before the fork and after it
+    List<Dcrl.BlockMessage> fork = new ArrayList<>(main.subList(0, 200));
+    fork.add(TestChains.block(fork, 7, Collections.singletonList(revokedIn(main, 150))));
+    fork.add(TestChains.block(fork, 7, Collections.singletonList(revokedIn(main, 250))));
+    this.chain.replaceWith(fork);
+    this.checkpoints.catchUp(this.chain);
+    assertMatchesReplay();
+
+    this.chain.truncate(200);
+    this.checkpoints.catchUp(this.chain);
+    assertMatchesReplay();
+  }
+
+  /*
+  Adds blocks to a copy of base until it's length long, each revoking one new certificate, and every tenth one also
+  revoking one that an earlier block did
+   */
+  private List<Dcrl.BlockMessage> extend(List<Dcrl.BlockMessage> base, int length, long seed) {
+    List<Dcrl.BlockMessage> blocks = new ArrayList<>(base);
+    while (blocks.size() < length) {
+      List<Dcrl.Certificate> certificates = new ArrayList<>();
+      if (blocks.size() > 0) {
+        certificates.add(TestChains.certificate("revoked at " + blocks.size() + " by " + seed));
+        if (blocks.size() % 10 == 0) {
+          certificates.add(revokedIn(blocks, blocks.size() / 2));
+        }
+      }
+      this.everyCertificate.addAll(certificates);
+      blocks.add(TestChains.block(blocks, seed, certificates));
+    }
+    return blocks;
+  }
+
+  private static Dcrl.Certificate revokedIn(List<Dcrl.BlockMessage> blocks, int height) {
+    return blocks.get(height).getCertificateRevocations(0).getCertificate();
+  }
+
+  private void assertMatchesReplay() {
+    Set<ByteString> expected = new HashSet<>();
+    for (Dcrl.BlockMessage block : this.chain.asList()) {
+      for (Dcrl.CertificateRevocation revocation : block.getCertificateRevocationsList()) {
+        expected.add(Util.hashCert(revocation.getCertificate()));
+      }
+    }
+    for (Dcrl.Certificate certificate : this.everyCertificate) {
+      ByteString hash = Util.hashCert(certificate);
+      assertEquals(expected.contains(hash), this.revoked.contains(hash), certificate.getSubject());
+    }
+    assertEquals(expected.size(), this.revoked.size());
+  }
+}
@@ -0,0 +1,47 @@
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Unsigned blocks that link up, for tests of the code that stores, syncs and replays chains without checking
+certificates. Chains made with different seeds share only the block at height 0.
+ */
+final class TestChains {
+  private TestChains() {
+  }
+
+  static List<Dcrl.BlockMessage> chain(int length, long seed) {
+    return fork(new ArrayList<>(), 0, length, seed);
+  }
+
+  /*
+  The first forkHeight blocks of base, then new blocks up to length
+   */
+  static List<Dcrl.BlockMessage> fork(List<Dcrl.BlockMessage> base, int forkHeight, int length, long seed) {
+    List<Dcrl.BlockMessage> blocks = new ArrayList<>(base.subList(0, forkHeight));
+    for (int height = forkHeight; height < length; height++) {
+      blocks.add(block(blocks, seed, new ArrayList<>()));
+    }
+    return blocks;
+  }
+
+  /*
+  The block that would go next on blocks, revoking the certificates
+   */
+  static Dcrl.BlockMessage block(List<Dcrl.BlockMessage> blocks, long seed, List<Dcrl.Certificate> revoked) {
+    int height = blocks.size();
+    Dcrl.BlockMessage.Builder block = Dcrl.BlockMessage.newBuilder()
+        .setHeight(height)
+        .setPreviousBlock(height == 0 ? ByteString.EMPTY : Util.hash(blocks.get(height - 1)))
+        .setTimestamp(height == 0 ? 0 : seed * 1_000_000 + height);
+    for (Dcrl.Certificate certificate : revoked) {
+      block.addCertificateRevocations(Dcrl.CertificateRevocation.newBuilder().setCertificate(certificate));
+    }
+    return block.setMerkleRoot(ByteString.copyFrom(Util.merkleRoot(block.getCertificateRevocationsList()))).build();
+  }
+
+  static Dcrl.Certificate certificate(String subject) {
+    return Dcrl.Certificate.newBuilder().setSubject(subject).build();
+  }
+}